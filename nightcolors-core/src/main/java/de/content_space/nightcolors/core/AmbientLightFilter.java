@@ -0,0 +1,143 @@
+package de.content_space.nightcolors.core;
+
+import java.util.TimeZone;
+
+/**
+ * Turns the readings of the ambient light sensor into a dark or bright room.
+ *
+ * The readings are smoothed with an exponential moving average over their sensor timestamps, so
+ * a batch that is delivered at once from the sensor FIFO gives the same result as single events.
+ * The room only becomes dark below DARK_LUX and only bright again above BRIGHT_LUX, readings in
+ * between keep the current state, so a lamp that flickers around a single threshold does not
+ * toggle the colors.
+ */
+public final class AmbientLightFilter {
+    public static final int UNKNOWN = 0;
+    public static final int DARK = 1;
+    public static final int BRIGHT = 2;
+
+    /** The room becomes dark below this illuminance in lux */
+    public static final float DARK_LUX = 10;
+    /** The room becomes bright above this illuminance in lux */
+    public static final float BRIGHT_LUX = 50;
+    /** The time constant of the moving average in nanoseconds */
+    public static final long TIME_CONSTANT = 30L * 1000 * 1000 * 1000;
+    /** How long before a scheduled transition the light may trigger it early */
+    public static final long WINDOW = 2 * 60 * 60 * 1000;
+
+    private final float mDarkLux;
+    private final float mBrightLux;
+    private final long mTimeConstant;
+    private int mState = UNKNOWN;
+    private float mAverage = 0;
+    private long mLastTimestamp = 0;
+    private long mSampleCount = 0;
+
+    /**
+     * Construct a filter with the default thresholds
+     */
+    public AmbientLightFilter() {
+        this(DARK_LUX, BRIGHT_LUX, TIME_CONSTANT);
+    }
+
+    /**
+     * Construct a filter
+     *
+     * @param darkLux The illuminance below which the room becomes dark
+     * @param brightLux The illuminance above which the room becomes bright
+     * @param timeConstant The time constant of the moving average in nanoseconds
+     */
+    public AmbientLightFilter(float darkLux, float brightLux, long timeConstant) {
+        if (darkLux > brightLux) {
+            throw new IllegalArgumentException("The dark threshold must not be above the bright threshold");
+        }
+        mDarkLux = darkLux;
+        mBrightLux = brightLux;
+        mTimeConstant = timeConstant;
+    }
+
+    /**
+     * Add a reading
+     *
+     * @param timestamp The time of the reading in nanoseconds, e.g. the sensor event timestamp
+     * @param lux The illuminance
+     * @return If the state has changed
+     */
+    public boolean onSample(long timestamp, float lux) {
+        ++mSampleCount;
+
+        if (mLastTimestamp == 0) {
+            mAverage = lux;
+        } else if (timestamp > mLastTimestamp) {
+            double dt = timestamp - mLastTimestamp;
+            mAverage += (float) ((lux - mAverage) * dt / (mTimeConstant + dt));
+        }
+        // readings that go back in time are ignored, their timestamp is kept only if it is newer
+        mLastTimestamp = Math.max(mLastTimestamp, timestamp);
+
+        int state = mState;
+        if (mAverage < mDarkLux) {
+            state = DARK;
+        } else if (mAverage > mBrightLux) {
+            state = BRIGHT;
+        }
+
+        if (state == mState) {
+            return false;
+        }
+
+        mState = state;
+        return true;
+    }
+
+    /**
+     * Forget all readings, e.g. when the sensor was off for a while
+     */
+    public void reset() {
+        mState = UNKNOWN;
+        mAverage = 0;
+        mLastTimestamp = 0;
+    }
+
+    /**
+     * @return DARK, BRIGHT or UNKNOWN if no reading has left the band between the thresholds
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * @return The smoothed illuminance
+     */
+    public float getAverage() {
+        return mAverage;
+    }
+
+    /**
+     * @return The number of readings since the construction of the filter
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * Decide if the day colors shall be set, taking the light of the room into account.
+     *
+     * Within WINDOW before the begin of the night a dark room gets the night colors early, within
+     * WINDOW before the begin of the day a bright room gets the day colors early. The scheduled
+     * transition always applies, so the light can never move a transition by more than WINDOW.
+     *
+     * @param schedule The schedule
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @param state The state of the room
+     * @return If the day colors shall be set
+     */
+    public static boolean isDay(NightSchedule schedule, long now, TimeZone tz, int state) {
+        if (schedule.isDay(now, tz)) {
+            return !(state == DARK && schedule.getBeginOfNextNight(now, tz) - now <= WINDOW);
+        } else {
+            return state == BRIGHT && schedule.getBeginOfNextDay(now, tz) - now <= WINDOW;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package de.content_space.nightcolors.core;
+
+import java.util.TimeZone;
+
+/**
+ * What has to be done after the wall clock or the time zone changed.
+ *
+ * The transition alarm is armed for an absolute time, so it only needs to be replaced if the next
+ * transition is now a different one. The colors are corrected to the ones that belong to the new
+ * local time, if the change lands within a fade the fade continues from the step of the new time.
+ */
+public final class ClockChange {
+    private final boolean mRearm;
+    private final long mNextTime;
+    private final boolean mNextToNight;
+    private final boolean mToNight;
+    private final long mFadeStart;
+    private final long mFadeDuration;
+
+    private ClockChange(boolean rearm, long nextTime, boolean nextToNight, boolean toNight,
+                        long fadeStart, long fadeDuration) {
+        mRearm = rearm;
+        mNextTime = nextTime;
+        mNextToNight = nextToNight;
+        mToNight = toNight;
+        mFadeStart = fadeStart;
+        mFadeDuration = fadeDuration;
+    }
+
+    /**
+     * Compute the actions after a change of the clock or the time zone
+     *
+     * @param schedule The schedule
+     * @param now The current time in milliseconds since the epoch, after the change
+     * @param tz The time zone, after the change
+     * @param armedTime The time of the armed transition alarm, 0 if none is known
+     * @param armedToNight If the armed transition goes to the night colors
+     * @param fadeDuration The configured fade duration in milliseconds
+     * @param lightState The state of the room, see AmbientLightFilter
+     * @return The actions
+     */
+    public static ClockChange compute(NightSchedule schedule, long now, TimeZone tz, long armedTime,
+                                      boolean armedToNight, long fadeDuration, int lightState) {
+        // the same computation as when the alarm is armed
+        Transition next = Transition.next(schedule, now + 1, tz);
+        boolean nextToNight = next != null && next.isToNight();
+        long nextTime = next != null ? next.getTime() : Long.MAX_VALUE;
+        boolean rearm = nextTime != armedTime || nextToNight != armedToNight;
+
+        boolean day = schedule.isDay(now, tz);
+        boolean adaptiveDay = AmbientLightFilter.isDay(schedule, now, tz, lightState);
+        long fadeStart = 0;
+        long duration = 0;
+        if (day == adaptiveDay && fadeDuration > 0) {
+            long previous = schedule.getPreviousTransition(now, tz);
+            if (now - previous < fadeDuration) {
+                fadeStart = previous;
+                duration = fadeDuration;
+            }
+        }
+
+        return new ClockChange(rearm, nextTime, nextToNight, !adaptiveDay, fadeStart, duration);
+    }
+
+    /**
+     * @return If the transition alarm has to be armed again
+     */
+    public boolean isRearmNeeded() {
+        return mRearm;
+    }
+
+    /**
+     * @return The time of the next transition in milliseconds since the epoch
+     */
+    public long getNextTime() {
+        return mNextTime;
+    }
+
+    /**
+     * @return If the next transition goes to the night colors
+     */
+    public boolean isNextToNight() {
+        return mNextToNight;
+    }
+
+    /**
+     * @return If the night colors shall be set now
+     */
+    public boolean isToNight() {
+        return mToNight;
+    }
+
+    /**
+     * @return The start of the running fade, 0 if there is none
+     */
+    public long getFadeStart() {
+        return mFadeStart;
+    }
+
+    /**
+     * @return The duration of the running fade, 0 if the colors shall be set directly
+     */
+    public long getFadeDuration() {
+        return mFadeDuration;
+    }
+}
@@ -0,0 +1,22 @@
+package de.content_space.nightcolors.core;
+
+import java.io.IOException;
+
+/**
+ * Interface to a device facility that controls the colors of the screen.
+ *
+ * Implementations are expected to remember the values they wrote last and to skip writes that
+ * would not change anything.
+ */
+public interface ColorBackend {
+    /**
+     * Set the multipliers of the screen.
+     *
+     * @param red The red multiplier, ignored by backends that cannot change red
+     * @param green The green multiplier
+     * @param blue The blue multiplier
+     * @return If anything was actually written, false if the screen already had these values
+     * @throws IOException If the values could not be written
+     */
+    boolean setMultipliers(int red, int green, int blue) throws IOException;
+}
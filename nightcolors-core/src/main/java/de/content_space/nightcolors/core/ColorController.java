@@ -0,0 +1,375 @@
+package de.content_space.nightcolors.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The state machine that decides when which colors are written.
+ *
+ * Colors can only be set while the screen is on. A target that arrives while the screen is off
+ * is staged in memory and in a state file and applied when the screen is turned on. During a fade
+ * only the step for the current time is applied and the next step is requested from the host.
+ *
+ * The controller has no dependencies on Android, all side effects except the color writes go
+ * through the Host.
+ */
+public class ColorController {
+    /** The green and blue multiplier of the classic night colors */
+    public static final int NIGHT_MULTIPLIER = 200000000;
+    public static final int DAY_MULTIPLIER = 2000000000;
+
+    /** The colors that have been set last are not known */
+    public static final int APPLIED_UNKNOWN = 0;
+    /** The final day colors have been set */
+    public static final int APPLIED_DAY = 1;
+    /** The final night colors have been set */
+    public static final int APPLIED_NIGHT = 2;
+    /** A step within a fade has been set */
+    public static final int APPLIED_FADE = 3;
+    private static final String APPLIED_FILE_NAME = "applied_colors.bin";
+
+    /**
+     * The environment of the controller
+     */
+    public interface Host {
+        /**
+         * @return The current time in milliseconds since the epoch
+         */
+        long currentTimeMillis();
+
+        /**
+         * @return The monotonic time in milliseconds
+         */
+        long elapsedRealtime();
+
+        /**
+         * @return If the screen is currently on
+         */
+        boolean isScreenOn();
+
+        /**
+         * Start or stop waiting for the screen to be turned on. While waiting, the host calls
+         * onScreenOn() when the screen is turned on.
+         *
+         * @param waiting If the host shall wait
+         */
+        void setWaitingForScreenOn(boolean waiting);
+
+        /**
+         * Request that the state is applied again at the given time to set the next fade step.
+         * There is only one pending request, a new one replaces it.
+         *
+         * @param time The time of the next step in milliseconds since the epoch
+         * @param window The tolerated delay in milliseconds
+         * @param state The state of the fade
+         */
+        void scheduleFadeStep(long time, long window, PendingState state);
+
+        /**
+         * Evaluate the schedule and the configured colors, used if no state is known when the
+         * screen is turned on
+         *
+         * @param now The current time in milliseconds since the epoch
+         * @return The colors that shall be set without a fade
+         */
+        PendingState getCurrentTarget(long now);
+
+        /**
+         * Called after colors have been applied
+         *
+         * @param name The name of the colors
+         * @param written If anything was written, false if the colors were already set
+         */
+        void onColorsSet(String name, boolean written);
+
+        /**
+         * Called if an operation failed
+         *
+         * @param message The description of the operation
+         * @param e The error
+         */
+        void onError(String message, IOException e);
+    }
+
+    private final Host mHost;
+    private final ColorBackend mBackend;
+    private final File mStateFile;
+    private EventJournal mJournal = null;
+    private File mAppliedFile = null;
+    private int mApplied = -1;
+    private PendingState mPendingState = null;
+    private boolean mWaiting = false;
+    private long mWaitStart = 0;
+    /** If the state file may exist, e.g. left by a previous process */
+    private boolean mStateFileUsed = true;
+
+    /**
+     * Construct the controller
+     *
+     * @param host The host
+     * @param backend The backend that writes the colors
+     * @param stateFile The file in which the staged state is stored
+     */
+    public ColorController(Host host, ColorBackend backend, File stateFile) {
+        mHost = host;
+        mBackend = backend;
+        mStateFile = stateFile;
+    }
+
+    /**
+     * Record the written colors and the errors in a journal
+     *
+     * @param journal The journal or null
+     */
+    public void setJournal(EventJournal journal) {
+        mJournal = journal;
+    }
+
+    /**
+     * Get the file in which the applied colors are stored
+     *
+     * @param filesDir The files directory of the app
+     * @return The file
+     */
+    public static File getAppliedFile(File filesDir) {
+        return new File(filesDir, APPLIED_FILE_NAME);
+    }
+
+    /**
+     * Remember which colors have been set in a file, so a fade towards colors that are already
+     * set, e.g. because the light of the room has triggered the transition early, sets them
+     * directly instead of starting from the other colors. The file survives the process.
+     *
+     * @param file The file or null to only remember the colors in memory
+     */
+    public void setAppliedFile(File file) {
+        mAppliedFile = file;
+        mApplied = -1;
+    }
+
+    /**
+     * Get the colors that have been set last
+     *
+     * @return APPLIED_DAY, APPLIED_NIGHT, APPLIED_FADE or APPLIED_UNKNOWN
+     */
+    public int getApplied() {
+        if (mApplied < 0) {
+            mApplied = APPLIED_UNKNOWN;
+            if (mAppliedFile != null && mAppliedFile.length() == 1) {
+                try {
+                    FileInputStream in = new FileInputStream(mAppliedFile);
+                    try {
+                        mApplied = in.read();
+                    } finally {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                    mHost.onError("Error reading the applied colors", e);
+                }
+            }
+            if (mApplied < APPLIED_UNKNOWN || mApplied > APPLIED_FADE) {
+                mApplied = APPLIED_UNKNOWN;
+            }
+        }
+        return mApplied;
+    }
+
+    private void setApplied(int applied) {
+        if (getApplied() == applied) {
+            return;
+        }
+
+        mApplied = applied;
+        if (mAppliedFile != null) {
+            try {
+                FileOutputStream out = new FileOutputStream(mAppliedFile);
+                try {
+                    out.write(applied);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                mHost.onError("Error storing the applied colors", e);
+            }
+        }
+    }
+
+    /**
+     * If the controller waits for the screen to be turned on
+     *
+     * @return If the controller waits
+     */
+    public boolean isWaiting() {
+        return mWaiting;
+    }
+
+    /**
+     * Set the colors of the given target now, or as soon as the screen is on.
+     *
+     * @param target The colors to set
+     * @return If the colors have been set and the controller has nothing left to do
+     */
+    public boolean onTarget(PendingState target) {
+        if (mHost.isScreenOn()) {
+            apply(target);
+            finish();
+            return true;
+        }
+
+        // Stage the colors so we know what to do when the screen is turned on, also in a new
+        // instance after the service has been restarted. Further fade steps are not scheduled
+        // while the screen is off, on screen on the step for the current time is applied.
+        waitForScreenOn();
+        mPendingState = target;
+        mStateFileUsed = true;
+        try {
+            target.save(mStateFile);
+        } catch (IOException e) {
+            journal(EventJournal.ERROR, EventJournal.ERROR_SAVE_STATE, 0);
+            mHost.onError("Error storing the pending colors", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * The screen has been turned on, apply the staged colors.
+     *
+     * When the service is restarted it might receive the screen on event again while the screen
+     * is off, in this case the controller keeps waiting.
+     *
+     * @return If the colors have been set and the controller has nothing left to do
+     */
+    public boolean onScreenOn() {
+        if (!mHost.isScreenOn()) {
+            waitForScreenOn();
+            return false;
+        }
+
+        PendingState state = mPendingState;
+
+        if (state == null) {
+            try {
+                state = PendingState.load(mStateFile);
+            } catch (IOException e) {
+                journal(EventJournal.ERROR, EventJournal.ERROR_LOAD_STATE, 0);
+                mHost.onError("Error reading the pending colors", e);
+            }
+        }
+
+        if (state == null) { // recover the colors by comparing the current time to the configured times
+            state = mHost.getCurrentTarget(mHost.currentTimeMillis());
+        }
+
+        apply(state);
+
+        if (mWaitStart != 0) {
+            NightColorsStats.SCREEN_WAIT.record((mHost.elapsedRealtime() - mWaitStart) / 1000);
+        }
+
+        finish();
+        return true;
+    }
+
+    private void waitForScreenOn() {
+        if (!mWaiting) {
+            mHost.setWaitingForScreenOn(true);
+            mWaiting = true;
+            mWaitStart = mHost.elapsedRealtime();
+        }
+    }
+
+    private void finish() {
+        if (mWaiting) {
+            mHost.setWaitingForScreenOn(false);
+            mWaiting = false;
+            mWaitStart = 0;
+        }
+
+        // the staged colors have been applied or are superseded, a fade step does not need
+        // another system call once the file is gone
+        if (mStateFileUsed) {
+            mStateFile.delete();
+            mStateFileUsed = false;
+        }
+        mPendingState = null;
+    }
+
+    /**
+     * Set the colors of a state: the final colors or, during a fade, the colors of the current
+     * step.
+     *
+     * @param state The state to apply
+     */
+    private void apply(PendingState state) {
+        int end = state.isToNight() ? APPLIED_NIGHT : APPLIED_DAY;
+        if (state.getFadeDuration() > 0 && getApplied() == end) {
+            // the fade would start from colors that are no longer set
+            state = state.withoutFade();
+        }
+
+        if (state.getFadeDuration() > 0) {
+            applyFadeStep(state);
+        } else {
+            if (setColors(state.getRed(), state.getGreen(), state.getBlue(), state.isToNight() ? "night" : "day")) {
+                setApplied(end);
+            } else {
+                setApplied(APPLIED_UNKNOWN);
+            }
+        }
+    }
+
+    /**
+     * Set the colors of the current step of a fade and schedule the next step unless the fade
+     * is complete.
+     *
+     * @param state The state of the fade
+     */
+    private void applyFadeStep(PendingState state) {
+        ColorTransition transition = ColorTransition.get(state.getNightRed(), state.getNightGreen(),
+                state.getNightBlue(), state.getFadeDuration());
+        int step = transition.getStep(mHost.currentTimeMillis() - state.getFadeStart());
+        boolean toNight = state.isToNight();
+
+        if (setColors(transition.getRed(step, toNight), transition.getGreen(step, toNight),
+                transition.getBlue(step, toNight), "fade step " + step + " of")) {
+            setApplied(step < transition.getStepCount() ? APPLIED_FADE : toNight ? APPLIED_NIGHT : APPLIED_DAY);
+        } else {
+            setApplied(APPLIED_UNKNOWN);
+        }
+
+        if (step < transition.getStepCount()) {
+            // allow the step to be batched with others within a quarter of a step
+            mHost.scheduleFadeStep(state.getFadeStart() + transition.getStepOffset(step + 1),
+                    transition.getStepInterval() / 4, state);
+        }
+    }
+
+    /**
+     * @return If the colors are set, false if writing them failed
+     */
+    private boolean setColors(int red, int green, int blue, String name) {
+        try {
+            boolean written = mBackend.setMultipliers(red, green, blue);
+            if (written) {
+                journal(EventJournal.COLOR, EventJournal.CHANNEL_RED, red);
+                journal(EventJournal.COLOR, EventJournal.CHANNEL_GREEN, green);
+                journal(EventJournal.COLOR, EventJournal.CHANNEL_BLUE, blue);
+            }
+            mHost.onColorsSet(name, written);
+            return true;
+        } catch (IOException e) {
+            journal(EventJournal.ERROR, EventJournal.ERROR_WRITE, 0);
+            mHost.onError("Error setting " + name + " colors", e);
+            return false;
+        }
+    }
+
+    private void journal(int type, int arg, int value) {
+        if (mJournal != null) {
+            mJournal.append(type, arg, value);
+        }
+    }
+}
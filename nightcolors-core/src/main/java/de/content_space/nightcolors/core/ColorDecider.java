@@ -0,0 +1,184 @@
+package de.content_space.nightcolors.core;
+
+import java.util.TimeZone;
+
+/**
+ * Decides which colors a command of the service sets.
+ *
+ * A manual switch or a snooze from the widget always wins and a manual switch ends a snooze.
+ * Transition alarms and fade steps are checked against the TransitionOrder, so duplicates and
+ * outdated alarms are dropped without any I/O. All other targets are replaced by the day colors
+ * while a snooze is active. Whether the light of the room has already triggered a transition is
+ * decided by the ColorController, which knows the colors that are actually set.
+ *
+ * The decider has no dependencies on Android, the preferences and the clock are read through the
+ * Environment, so the service and the simulation take the same decisions.
+ */
+public final class ColorDecider {
+    /**
+     * The state the decisions depend on
+     */
+    public interface Environment {
+        /**
+         * @return The current time in milliseconds since the epoch
+         */
+        long currentTimeMillis();
+
+        /**
+         * @return The time zone
+         */
+        TimeZone getTimeZone();
+
+        /**
+         * Get the schedule
+         *
+         * @param now The current time, the schedule covers its local day
+         * @return The schedule
+         */
+        NightSchedule getSchedule(long now);
+
+        /**
+         * @return The state of the room, see AmbientLightFilter
+         */
+        int getLightState();
+
+        /**
+         * @return The configured fade duration in milliseconds
+         */
+        long getFadeDuration();
+
+        /**
+         * Get the target with the configured night colors
+         *
+         * @param toNight If the night colors shall be set
+         * @param fadeStart The start time of the fade in milliseconds since the epoch
+         * @param fadeDuration The duration of the fade in milliseconds, 0 for no fade
+         * @return The target
+         */
+        PendingState getTarget(boolean toNight, long fadeStart, long fadeDuration);
+
+        /**
+         * @return The end of the snooze in milliseconds since the epoch, 0 if there is none
+         */
+        long getSnoozeUntil();
+
+        /**
+         * Suppress the night colors until the given time and arm the end of the snooze
+         *
+         * @param until The end of the snooze in milliseconds since the epoch, 0 to end it now
+         */
+        void setSnoozeUntil(long until);
+    }
+
+    private final Environment mEnvironment;
+    private final TransitionOrder mOrder;
+
+    /**
+     * Construct a decider
+     *
+     * @param environment The environment
+     * @param order The order of the applied transitions
+     */
+    public ColorDecider(Environment environment, TransitionOrder order) {
+        mEnvironment = environment;
+        mOrder = order;
+    }
+
+    /**
+     * The colors have been switched by hand, they stay until the next transition
+     *
+     * @param toNight If the night colors shall be set
+     * @return The target
+     */
+    public PendingState onManual(boolean toNight) {
+        mOrder.onManual(mEnvironment.currentTimeMillis());
+        mEnvironment.setSnoozeUntil(0);
+        return mEnvironment.getTarget(toNight, 0, 0);
+    }
+
+    /**
+     * Suppress the night colors for a while
+     *
+     * @param minutes The duration of the snooze in minutes
+     * @return The target
+     */
+    public PendingState onSnooze(int minutes) {
+        mOrder.onManual(mEnvironment.currentTimeMillis());
+        mEnvironment.setSnoozeUntil(mEnvironment.currentTimeMillis() + minutes * NightSchedule.MINUTE_MILLIS);
+        return mEnvironment.getTarget(false, 0, 0);
+    }
+
+    /**
+     * The snooze has ended, set the colors of the schedule again
+     *
+     * @return The target
+     */
+    public PendingState onResume() {
+        mEnvironment.setSnoozeUntil(0);
+        return getCurrentTarget(mEnvironment.currentTimeMillis());
+    }
+
+    /**
+     * A transition alarm has been delivered
+     *
+     * @param sequence The sequence number of the alarm, 0 if it has none
+     * @param transition The transition, already corrected by Transition.latest()
+     * @return The target or null if the alarm is a duplicate or outdated
+     */
+    public PendingState onTransition(long sequence, Transition transition) {
+        if (!mOrder.acceptTransition(sequence, transition.getTime())) {
+            return null;
+        }
+        // the fade starts at the scheduled time
+        return snooze(mEnvironment.getTarget(transition.isToNight(), transition.getTime(),
+                mEnvironment.getFadeDuration()));
+    }
+
+    /**
+     * The next step of a fade is due
+     *
+     * @param fadeStart The start time of the fade in milliseconds since the epoch
+     * @param fadeDuration The duration of the fade in milliseconds, 0 for no fade
+     * @param toNight If the fade goes to the night colors
+     * @return The target or null if the fade belongs to an outdated transition
+     */
+    public PendingState onFadeStep(long fadeStart, long fadeDuration, boolean toNight) {
+        if (fadeDuration != 0 && !mOrder.acceptFadeStep(fadeStart)) {
+            return null;
+        }
+        return snooze(mEnvironment.getTarget(toNight, fadeStart, fadeDuration));
+    }
+
+    /**
+     * Set the day or night colors directly, e.g. when the alarms are installed or the light of
+     * the room has changed
+     *
+     * @param toNight If the night colors shall be set
+     * @return The target
+     */
+    public PendingState onSwitch(boolean toNight) {
+        return snooze(mEnvironment.getTarget(toNight, 0, 0));
+    }
+
+    /**
+     * Evaluate the schedule and the light of the room, used if no state is known
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @return The colors that shall be set without a fade
+     */
+    public PendingState getCurrentTarget(long now) {
+        TimeZone tz = mEnvironment.getTimeZone();
+        boolean day = AmbientLightFilter.isDay(mEnvironment.getSchedule(now), now, tz, mEnvironment.getLightState());
+        return snooze(mEnvironment.getTarget(!day, 0, 0));
+    }
+
+    /**
+     * Replace the night colors by the day colors while a snooze is active
+     */
+    private PendingState snooze(PendingState target) {
+        if (target.isToNight() && mEnvironment.currentTimeMillis() < mEnvironment.getSnoozeUntil()) {
+            return mEnvironment.getTarget(false, 0, 0);
+        }
+        return target;
+    }
+}
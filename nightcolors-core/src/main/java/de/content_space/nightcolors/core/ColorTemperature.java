@@ -0,0 +1,80 @@
+package de.content_space.nightcolors.core;
+
+/**
+ * Converts a color temperature in Kelvin to green and blue multipliers.
+ *
+ * The multipliers of the blackbody colors are computed once for every 100 K between MIN_KELVIN
+ * and MAX_KELVIN, using the approximation by Tanner Helland, and normalized so MAX_KELVIN gives
+ * the day multipliers. A lookup then only interpolates between two table entries with integer
+ * arithmetic. Red is at its maximum for all of these temperatures.
+ */
+public final class ColorTemperature {
+    /** Not a temperature: the classic night colors with reduced green and blue */
+    public static final int CLASSIC = 0;
+    public static final int MIN_KELVIN = 1000;
+    public static final int MAX_KELVIN = 6500;
+    private static final int STEP = 100;
+    /** The smallest multiplier, a channel is never turned off completely */
+    static final int MIN_MULTIPLIER = ColorController.DAY_MULTIPLIER / 100;
+
+    private static final int[] GREEN;
+    private static final int[] BLUE;
+
+    static {
+        int size = (MAX_KELVIN - MIN_KELVIN) / STEP + 1;
+        double[] green = new double[size];
+        double[] blue = new double[size];
+
+        for (int i = 0; i < size; ++i) {
+            double t = (MIN_KELVIN + i * STEP) / 100.0;
+            green[i] = 99.4708025861 * Math.log(t) - 161.1195681661;
+            blue[i] = t <= 19 ? 0 : 138.5177312231 * Math.log(t - 10) - 305.0447927307;
+        }
+
+        GREEN = normalize(green);
+        BLUE = normalize(blue);
+    }
+
+    private ColorTemperature() {
+    }
+
+    private static int[] normalize(double[] values) {
+        double white = values[values.length - 1];
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            double multiplier = ColorController.DAY_MULTIPLIER * Math.min(1, values[i] / white);
+            result[i] = (int) Math.max(MIN_MULTIPLIER, Math.round(multiplier));
+        }
+        return result;
+    }
+
+    private static int lookup(int[] table, int kelvin) {
+        int offset = Math.max(0, Math.min(MAX_KELVIN - MIN_KELVIN, kelvin - MIN_KELVIN));
+        int index = offset / STEP;
+        int fraction = offset % STEP;
+        if (fraction == 0) {
+            return table[index];
+        }
+        return (int) (table[index] + (long) (table[index + 1] - table[index]) * fraction / STEP);
+    }
+
+    /**
+     * Get the green multiplier of a color temperature
+     *
+     * @param kelvin The color temperature in Kelvin, clamped to the supported range
+     * @return The multiplier
+     */
+    public static int getGreen(int kelvin) {
+        return lookup(GREEN, kelvin);
+    }
+
+    /**
+     * Get the blue multiplier of a color temperature
+     *
+     * @param kelvin The color temperature in Kelvin, clamped to the supported range
+     * @return The multiplier
+     */
+    public static int getBlue(int kelvin) {
+        return lookup(BLUE, kelvin);
+    }
+}
@@ -0,0 +1,155 @@
+package de.content_space.nightcolors.core;
+
+/**
+ * Precomputed table of the multipliers for a gradual transition between the day and the night
+ * colors.
+ *
+ * The multipliers are interpolated geometrically as equal ratios look like equal brightness
+ * changes. The number of steps is the smallest number for which no step changes a channel by more
+ * than MAX_STEP_RATIO, but a step is never shorter than MIN_STEP_INTERVAL. The table is computed
+ * once, every step is then just an array lookup.
+ */
+public class ColorTransition {
+    /** The maximum ratio between the multipliers of two consecutive steps */
+    static final double MAX_STEP_RATIO = 1.08;
+    /** The minimum time between two steps in milliseconds */
+    static final long MIN_STEP_INTERVAL = 60 * 1000;
+
+    private static ColorTransition sLastTransition = null;
+
+    private final long mDuration;
+    private final long mStepInterval;
+    private final int[] mRed;
+    private final int[] mGreen;
+    private final int[] mBlue;
+
+    /**
+     * Get the transition from the day colors to the given night colors, reusing the previous
+     * table if the parameters did not change.
+     *
+     * @param nightRed The red multiplier of the night colors
+     * @param nightGreen The green multiplier of the night colors
+     * @param nightBlue The blue multiplier of the night colors
+     * @param duration The duration of the transition in milliseconds
+     * @return The transition
+     */
+    public static synchronized ColorTransition get(int nightRed, int nightGreen, int nightBlue,
+                                                   long duration) {
+        ColorTransition last = sLastTransition;
+        if (last == null || last.mDuration != duration
+                || last.mRed[last.mRed.length - 1] != nightRed
+                || last.mGreen[last.mGreen.length - 1] != nightGreen
+                || last.mBlue[last.mBlue.length - 1] != nightBlue) {
+            sLastTransition = new ColorTransition(ColorController.DAY_MULTIPLIER, ColorController.DAY_MULTIPLIER,
+                    ColorController.DAY_MULTIPLIER, nightRed, nightGreen, nightBlue, duration);
+        }
+
+        return sLastTransition;
+    }
+
+    ColorTransition(int dayRed, int dayGreen, int dayBlue, int nightRed, int nightGreen,
+                    int nightBlue, long duration) {
+        mDuration = duration;
+
+        double redLog = Math.log((double) dayRed / nightRed);
+        double greenLog = Math.log((double) dayGreen / nightGreen);
+        double blueLog = Math.log((double) dayBlue / nightBlue);
+        double maxLog = Math.max(Math.abs(redLog), Math.max(Math.abs(greenLog), Math.abs(blueLog)));
+
+        int steps = (int) Math.ceil(maxLog / Math.log(MAX_STEP_RATIO));
+        steps = (int) Math.min(steps, duration / MIN_STEP_INTERVAL);
+        steps = Math.max(steps, 1);
+
+        mStepInterval = duration / steps;
+        mRed = new int[steps + 1];
+        mGreen = new int[steps + 1];
+        mBlue = new int[steps + 1];
+
+        for (int i = 0; i <= steps; ++i) {
+            double fraction = (double) i / steps;
+            mRed[i] = (int) Math.round(dayRed * Math.exp(-redLog * fraction));
+            mGreen[i] = (int) Math.round(dayGreen * Math.exp(-greenLog * fraction));
+            mBlue[i] = (int) Math.round(dayBlue * Math.exp(-blueLog * fraction));
+        }
+
+        // make sure that rounding does not change the final values
+        mRed[steps] = nightRed;
+        mGreen[steps] = nightGreen;
+        mBlue[steps] = nightBlue;
+    }
+
+    /**
+     * Get the number of steps, the transition is complete after this step
+     *
+     * @return The number of steps
+     */
+    public int getStepCount() {
+        return mGreen.length - 1;
+    }
+
+    /**
+     * Get the time between two steps
+     *
+     * @return The time between two steps in milliseconds
+     */
+    public long getStepInterval() {
+        return mStepInterval;
+    }
+
+    /**
+     * Get the step that is active at the given time after the start of the transition
+     *
+     * @param elapsed The time since the start of the transition in milliseconds
+     * @return The active step
+     */
+    public int getStep(long elapsed) {
+        if (elapsed <= 0) {
+            return 0;
+        }
+
+        return (int) Math.min(elapsed / mStepInterval, getStepCount());
+    }
+
+    /**
+     * Get the time after the start of the transition at which the given step begins
+     *
+     * @param step The step
+     * @return The offset of the step in milliseconds
+     */
+    public long getStepOffset(int step) {
+        return step * mStepInterval;
+    }
+
+    /**
+     * Get the red multiplier of a step
+     *
+     * @param step The step
+     * @param toNight If this is the transition to the night, otherwise the one to the day
+     * @return The red multiplier
+     */
+    public int getRed(int step, boolean toNight) {
+        return mRed[toNight ? step : getStepCount() - step];
+    }
+
+    /**
+     * Get the green multiplier of a step
+     *
+     * @param step The step
+     * @param toNight If this is the transition to the night, otherwise the one to the day
+     * @return The green multiplier
+     */
+    public int getGreen(int step, boolean toNight) {
+        return mGreen[toNight ? step : getStepCount() - step];
+    }
+
+    /**
+     * Get the blue multiplier of a step
+     *
+     * @param step The step
+     * @param toNight If this is the transition to the night, otherwise the one to the day
+     * @return The blue multiplier
+     */
+    public int getBlue(int step, boolean toNight) {
+        return mBlue[toNight ? step : getStepCount() - step];
+    }
+}
@@ -0,0 +1,352 @@
+package de.content_space.nightcolors.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The kernel color interfaces that are available on the device.
+ *
+ * The known interfaces are probed once, e.g. after boot, and the result is stored in a small file
+ * so transitions can create the right backend directly instead of trying to open nodes that do
+ * not exist.
+ */
+public final class DeviceProfile {
+    public static final int TYPE_SAMOLED = 1;
+    public static final int TYPE_KCAL = 2;
+    public static final int TYPE_MDNIE = 3;
+
+    private static final String FILE_NAME = "device_profile.bin";
+    private static final int VERSION = 5;
+    /** The previous version that only stored the calibration of red */
+    private static final int VERSION_RED_ONLY = 4;
+    private static final int FLAG_EXISTS = 1;
+    private static final int FLAG_WRITABLE = 2;
+    private static final int FLAG_ENABLE = 4;
+    private static final int FLAG_RED = 8;
+
+    private static final String KCAL_PATH = "sys/devices/platform/kcal_ctrl.0/";
+    private static final String KCAL_FILE = "kcal";
+    private static final String KCAL_ENABLE_FILE = "kcal_enable";
+    private static final String KCAL_MIN_FILE = "kcal_min";
+    private static final String MDNIE_PATH = "sys/class/mdnie/mdnie/sensorRGB";
+
+    /**
+     * A probed color interface
+     */
+    public static final class Node {
+        private final int mType;
+        private final String mPath;
+        private final int mFlags;
+        private final int mMin;
+        private final int mMax;
+        private final int[] mCalibrated;
+
+        Node(int type, String path, int flags, int min, int max, int[] calibrated) {
+            mType = type;
+            mPath = path;
+            mFlags = flags;
+            mMin = min;
+            mMax = max;
+            mCalibrated = calibrated;
+        }
+
+        public int getType() {
+            return mType;
+        }
+
+        public String getPath() {
+            return mPath;
+        }
+
+        public boolean exists() {
+            return (mFlags & FLAG_EXISTS) != 0;
+        }
+
+        public boolean isWritable() {
+            return (mFlags & FLAG_WRITABLE) != 0;
+        }
+
+        /**
+         * @return If the red channel can be changed
+         */
+        public boolean supportsRed() {
+            return mType != TYPE_SAMOLED || (mFlags & FLAG_RED) != 0;
+        }
+
+        public int getMin() {
+            return mMin;
+        }
+
+        public int getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return The values of red, green and blue at full intensity that were found when the
+         *         interface was probed
+         */
+        public int[] getCalibrated() {
+            return mCalibrated.clone();
+        }
+
+        /**
+         * Create a backend that writes to this interface
+         *
+         * @param shell The shell that writes the files if they are not writable by the app
+         * @return The backend
+         */
+        ColorBackend createBackend(RootShell shell) {
+            if (isWritable()) {
+                shell = null;
+            }
+
+            if (mType == TYPE_SAMOLED) {
+                return new SysfsColorBackend(new File(mPath), (mFlags & FLAG_RED) != 0, shell);
+            }
+
+            File file = new File(mPath);
+            File enableFile = (mFlags & FLAG_ENABLE) != 0 ? new File(file.getParentFile(), KCAL_ENABLE_FILE) : null;
+            return new RgbColorBackend(file, enableFile, new int[]{mMin, mMin, mMin}, mCalibrated, shell);
+        }
+
+        @Override
+        public String toString() {
+            String name = mType == TYPE_SAMOLED ? "samoled_color" : mType == TYPE_KCAL ? "kcal" : "mdnie";
+            if (!exists()) {
+                return name + " not found";
+            }
+            return name + " at " + mPath + (isWritable() ? " writable" : " read-only")
+                    + (supportsRed() ? " with red" : "") + ", range " + mMin + "-" + mMax
+                    + (mType == TYPE_KCAL || mType == TYPE_MDNIE ? ", calibrated " + mCalibrated[0] + " "
+                    + mCalibrated[1] + " " + mCalibrated[2] : "");
+        }
+    }
+
+    private final Node[] mNodes;
+
+    private DeviceProfile(Node[] nodes) {
+        mNodes = nodes;
+    }
+
+    /**
+     * Probe the known color interfaces
+     *
+     * @param root The root of the file system, a different directory for tests
+     * @return The profile
+     */
+    public static DeviceProfile probe(File root) {
+        Node[] nodes = new Node[3];
+
+        File samoled = new File(root, SysfsColorBackend.SAMOLED_PATH.substring(1));
+        File green = new File(samoled, SysfsColorBackend.GREEN_FILE);
+        File blue = new File(samoled, SysfsColorBackend.BLUE_FILE);
+        int samoledFlags = flags(green) & flags(blue);
+        // red is used if it can be written the same way as green and blue, maybe only by root
+        int redFlags = flags(new File(samoled, SysfsColorBackend.RED_FILE));
+        if ((redFlags & FLAG_EXISTS) != 0 && (redFlags & samoledFlags) == samoledFlags) {
+            samoledFlags |= FLAG_RED;
+        }
+        int day = ColorController.DAY_MULTIPLIER;
+        nodes[0] = new Node(TYPE_SAMOLED, samoled.getPath(), samoledFlags, 0, day, new int[]{day, day, day});
+
+        File kcalDir = new File(root, KCAL_PATH);
+        File kcal = new File(kcalDir, KCAL_FILE);
+        int kcalFlags = flags(kcal);
+        if (new File(kcalDir, KCAL_ENABLE_FILE).exists()) {
+            kcalFlags |= FLAG_ENABLE;
+        }
+        int kcalMin = readInt(new File(kcalDir, KCAL_MIN_FILE), 0);
+        nodes[1] = new Node(TYPE_KCAL, kcal.getPath(), kcalFlags, kcalMin, 256, readCalibration(kcal, kcalMin, 256));
+
+        File mdnie = new File(root, MDNIE_PATH);
+        nodes[2] = new Node(TYPE_MDNIE, mdnie.getPath(), flags(mdnie), 0, 255, readCalibration(mdnie, 0, 255));
+
+        return new DeviceProfile(nodes);
+    }
+
+    /**
+     * Read the values of an interface that takes "red green blue". The interfaces are probed
+     * after boot before any colors are set, so these are the calibration of the panel. A channel
+     * that cannot be read is at full intensity.
+     */
+    private static int[] readCalibration(File file, int min, int max) {
+        int[] result = {max, max, max};
+        String value = SysfsColorBackend.readString(file);
+        if (value == null) {
+            return result;
+        }
+
+        String[] channels = value.trim().split("\\s+");
+        for (int i = 0; i < Math.min(3, channels.length); ++i) {
+            try {
+                result[i] = Math.max(min, Math.min(max, Integer.parseInt(channels[i])));
+            } catch (NumberFormatException e) {
+                // keep full intensity
+            }
+        }
+        return result;
+    }
+
+    private static int readInt(File file, int defaultValue) {
+        String value = SysfsColorBackend.readString(file);
+        if (value == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static int flags(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        return file.canWrite() ? FLAG_EXISTS | FLAG_WRITABLE : FLAG_EXISTS;
+    }
+
+    /**
+     * Get all probed interfaces, including the ones that were not found
+     *
+     * @return The interfaces in the order of preference
+     */
+    public Node[] getNodes() {
+        return mNodes.clone();
+    }
+
+    /**
+     * Get the interface that shall be used
+     *
+     * @return The first interface that exists and is writable or null if there is none
+     */
+    public Node getSelected() {
+        return getSelected(false);
+    }
+
+    /**
+     * Get the interface that shall be used
+     *
+     * @param root If interfaces that are only writable by root can be used
+     * @return The first interface that exists and is writable or null if there is none
+     */
+    public Node getSelected(boolean root) {
+        for (Node node : mNodes) {
+            if (node.exists() && (node.isWritable() || root)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create a backend for the selected interface
+     *
+     * @return The backend or null if the device has no usable color interface
+     */
+    public ColorBackend createBackend() {
+        return createBackend(null);
+    }
+
+    /**
+     * Create a backend for the selected interface
+     *
+     * @param shell The shell for interfaces that are only writable by root or null if there is none
+     * @return The backend or null if the device has no usable color interface
+     */
+    public ColorBackend createBackend(RootShell shell) {
+        Node node = getSelected(shell != null);
+        return node == null ? null : node.createBackend(shell);
+    }
+
+    /**
+     * Get the file in which the profile is stored
+     *
+     * @param filesDir The files directory of the app
+     * @return The file
+     */
+    public static File getFile(File filesDir) {
+        return new File(filesDir, FILE_NAME);
+    }
+
+    /**
+     * Store the profile
+     *
+     * @param file The file to write
+     * @throws IOException If the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeByte(VERSION);
+            out.writeByte(mNodes.length);
+            for (Node node : mNodes) {
+                out.writeByte(node.mType);
+                out.writeUTF(node.mPath);
+                out.writeByte(node.mFlags);
+                out.writeInt(node.mMin);
+                out.writeInt(node.mMax);
+                for (int value : node.mCalibrated) {
+                    out.writeInt(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a stored profile
+     *
+     * @param file The file to read
+     * @return The profile or null if none is stored
+     * @throws IOException If the file exists but cannot be read
+     */
+    public static DeviceProfile load(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            int version = in.readByte();
+            if (version != VERSION && version != VERSION_RED_ONLY) {
+                return null;
+            }
+
+            Node[] nodes = new Node[in.readByte()];
+            for (int i = 0; i < nodes.length; ++i) {
+                int type = in.readByte();
+                String path = in.readUTF();
+                int flags = in.readByte();
+                int min = in.readInt();
+                int max = in.readInt();
+                // Probing again now could read the night colors as the calibration, the older
+                // profile keeps green and blue at full intensity until the next boot probes them.
+                int[] calibrated = version == VERSION_RED_ONLY ? new int[]{in.readInt(), max, max}
+                        : new int[]{in.readInt(), in.readInt(), in.readInt()};
+                nodes[i] = new Node(type, path, flags, min, max, calibrated);
+            }
+            return new DeviceProfile(nodes);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder result = new StringBuilder();
+        for (Node node : mNodes) {
+            if (result.length() > 0) {
+                result.append("; ");
+            }
+            result.append(node);
+        }
+        return result.toString();
+    }
+}
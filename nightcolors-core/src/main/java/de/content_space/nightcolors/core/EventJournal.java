@@ -0,0 +1,257 @@
+package de.content_space.nightcolors.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A ring buffer of compact binary records of what the app did, kept in a memory-mapped file.
+ *
+ * Every record has 16 bytes: the time in milliseconds since the epoch, the type, a reserved byte,
+ * a 16 bit argument and a 32 bit value. Appending a record only writes into the mapped buffer,
+ * there is no allocation and no system call. The pages belong to the file, so the records
+ * survive the death of the process, and the file can be decoded on a plain JVM:
+ *
+ *   java -cp nightcolors-core.jar de.content_space.nightcolors.core.EventJournal journal.bin
+ */
+public final class EventJournal {
+    /** The process has opened the journal, the value is the pid */
+    public static final int PROCESS_START = 1;
+    /** The device has booted */
+    public static final int BOOT = 2;
+    /** The alarms are installed, the argument is 1 for the night colors */
+    public static final int INSTALL_ALARMS = 3;
+    /** A transition alarm has fired, the argument is 1 for the night, the value is the drift in ms */
+    public static final int ALARM = 4;
+    /** The alarm of a fade step has fired */
+    public static final int FADE_STEP = 5;
+    /**
+     * The screen has been turned on. Screen events are only delivered to registered receivers, so
+     * it is only journaled while the service waits for the screen to set the colors.
+     */
+    public static final int SCREEN_ON = 6;
+    /** The screen has been turned off, only journaled while the adaptive mode watches the light */
+    public static final int SCREEN_OFF = 7;
+    public static final int SERVICE_CREATE = 8;
+    /** The service got a command, the argument are the start flags, the value the start id */
+    public static final int SERVICE_START = 9;
+    public static final int SERVICE_DESTROY = 10;
+    /** A multiplier has been written, the argument is the channel, the value the multiplier */
+    public static final int COLOR = 11;
+    /** An operation failed, the argument is one of the ERROR_ codes */
+    public static final int ERROR = 12;
+    /** The colors are switched by hand, the argument is 1 for the night or MANUAL_SNOOZE */
+    public static final int MANUAL = 13;
+    /** The clock or the time zone has changed, the argument is 1 if the alarm was re-armed */
+    public static final int CLOCK_CHANGE = 14;
+
+    public static final int CHANNEL_RED = 0;
+    public static final int CHANNEL_GREEN = 1;
+    public static final int CHANNEL_BLUE = 2;
+
+    /** The argument of a snooze, the value is its duration in minutes */
+    public static final int MANUAL_SNOOZE = 2;
+
+    public static final int ERROR_WRITE = 1;
+    public static final int ERROR_SAVE_STATE = 2;
+    public static final int ERROR_LOAD_STATE = 3;
+
+    /** The start flags of a redelivered command, like Service.START_FLAG_REDELIVERY */
+    public static final int FLAG_REDELIVERY = 1;
+    /** The start flags of a retried command, like Service.START_FLAG_RETRY */
+    public static final int FLAG_RETRY = 2;
+
+    /** The number of records of the journal of the app, 64 KiB */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final String FILE_NAME = "journal.bin";
+    private static final int MAGIC = 0x4e434a31; // NCJ1
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final String[] TYPE_NAMES = {null, "process start", "boot", "install alarms",
+            "alarm", "fade step", "screen on", "screen off", "service create", "service start",
+            "service destroy", "color", "error", "manual", "clock change"};
+
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mCount;
+
+    private EventJournal(MappedByteBuffer buffer, int capacity, long count) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mCount = count;
+    }
+
+    /**
+     * Get the file of the journal of the app
+     *
+     * @param filesDir The files directory of the app
+     * @return The file
+     */
+    public static File getFile(File filesDir) {
+        return new File(filesDir, FILE_NAME);
+    }
+
+    /**
+     * Open a journal, the records in the file are kept if it has the given capacity
+     *
+     * @param file The file, created if it does not exist
+     * @param capacity The maximum number of records
+     * @return The journal
+     * @throws IOException If the file cannot be mapped
+     */
+    public static EventJournal open(File file, int capacity) throws IOException {
+        int size = HEADER_SIZE + capacity * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = raf.length() == size && raf.readInt() == MAGIC && raf.readInt() == capacity;
+            if (!valid) {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+
+            // the mapping stays valid after the file is closed
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (!valid) {
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, capacity);
+                buffer.putLong(8, 0);
+            }
+            return new EventJournal(buffer, capacity, Math.max(0, buffer.getLong(8)));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Append a record, overwriting the oldest one if the journal is full
+     *
+     * @param type The type of the event
+     * @param arg The argument, 16 bits
+     * @param value The value
+     */
+    public synchronized void append(int type, int arg, int value) {
+        int offset = HEADER_SIZE + (int) (mCount % mCapacity) * RECORD_SIZE;
+        // the type is written last, if the process dies in between the record has no type
+        mBuffer.put(offset + 8, (byte) 0);
+        mBuffer.putLong(offset, System.currentTimeMillis());
+        mBuffer.putShort(offset + 10, (short) arg);
+        mBuffer.putInt(offset + 12, value);
+        mBuffer.put(offset + 8, (byte) type);
+        mBuffer.putLong(8, ++mCount);
+    }
+
+    /**
+     * @return The number of records appended since the file was created
+     */
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Decode the most recent records of this journal
+     *
+     * @param writer The writer to which one line per record is printed
+     * @param limit The maximum number of records
+     */
+    public synchronized void decode(PrintWriter writer, int limit) {
+        decode(mBuffer.duplicate(), writer, limit);
+    }
+
+    /**
+     * Decode the most recent records of a journal file
+     *
+     * @param file The file
+     * @param writer The writer to which one line per record is printed
+     * @param limit The maximum number of records
+     * @throws IOException If the file cannot be read or is no journal
+     */
+    public static void decode(File file, PrintWriter writer, int limit) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) > 0) {
+                // read the whole file
+            }
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+                    || buffer.capacity() != HEADER_SIZE + buffer.getInt(4) * RECORD_SIZE) {
+                throw new IOException(file + " is no event journal");
+            }
+            decode(buffer, writer, limit);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void decode(ByteBuffer buffer, PrintWriter writer, int limit) {
+        int capacity = buffer.getInt(4);
+        long count = buffer.getLong(8);
+        long first = Math.max(0, Math.max(count - capacity, count - limit));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+
+        for (long i = first; i < count; ++i) {
+            int offset = HEADER_SIZE + (int) (i % capacity) * RECORD_SIZE;
+            int type = buffer.get(offset + 8);
+            writer.print(format.format(new Date(buffer.getLong(offset))));
+            writer.print(' ');
+            if (type == 0) {
+                writer.println("incomplete record");
+                continue;
+            }
+            writer.println(describe(type, buffer.getShort(offset + 10), buffer.getInt(offset + 12)));
+        }
+        writer.flush();
+    }
+
+    private static String describe(int type, int arg, int value) {
+        String name = type > 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "unknown " + type;
+        switch (type) {
+            case PROCESS_START:
+                return name + " pid=" + value;
+            case INSTALL_ALARMS:
+                return name + (arg != 0 ? " night" : " day");
+            case ALARM:
+                return name + (arg != 0 ? " night" : " day") + " drift=" + value + "ms";
+            case SERVICE_START:
+                return name + " id=" + value + ((arg & FLAG_REDELIVERY) != 0 ? " redelivered" : "")
+                        + ((arg & FLAG_RETRY) != 0 ? " retried" : "");
+            case COLOR:
+                return name + " " + (arg == CHANNEL_RED ? "red" : arg == CHANNEL_GREEN ? "green" : "blue") + "=" + value;
+            case MANUAL:
+                return name + (arg == MANUAL_SNOOZE ? " snooze " + value + "min" : arg != 0 ? " night" : " day");
+            case CLOCK_CHANGE:
+                return name + " utc" + (value < 0 ? "" : "+") + value + "min" + (arg != 0 ? " rearmed" : "");
+            case ERROR:
+                return name + " " + (arg == ERROR_WRITE ? "writing the colors" : arg == ERROR_SAVE_STATE
+                        ? "storing the pending colors" : arg == ERROR_LOAD_STATE ? "reading the pending colors" : arg);
+            default:
+                return name;
+        }
+    }
+
+    /**
+     * Decode a journal file that has been copied from the device
+     *
+     * @param args The path of the file and optionally the maximum number of records
+     * @throws IOException If the file cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: EventJournal journal.bin [limit]");
+            System.exit(1);
+        }
+
+        int limit = args.length > 1 ? Integer.parseInt(args[1]) : Integer.MAX_VALUE;
+        decode(new File(args[0]), new PrintWriter(new OutputStreamWriter(System.out, "UTF-8")), limit);
+    }
+}
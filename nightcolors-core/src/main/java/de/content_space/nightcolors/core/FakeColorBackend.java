@@ -0,0 +1,125 @@
+package de.content_space.nightcolors.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sysfs color backend rooted at an arbitrary directory instead of the real kernel interface.
+ *
+ * The multiplier files, including red, are created with the day values if they do not exist yet.
+ * This allows to exercise and time the complete apply path on a plain JVM, the number of writes,
+ * the writes that did not change the value and the time spent writing are counted.
+ */
+public class FakeColorBackend extends SysfsColorBackend {
+    private final File mBaseDir;
+    private int mWriteCount = 0;
+    private int mRedundantWriteCount = 0;
+    private long mWriteNanos = 0;
+
+    /**
+     * Construct a fake backend in the given directory
+     *
+     * @param baseDir The directory that shall contain the multiplier files, created if necessary
+     * @throws IOException If the directory or the files cannot be created
+     */
+    public FakeColorBackend(File baseDir) throws IOException {
+        super(baseDir, true);
+        mBaseDir = baseDir;
+
+        if (!baseDir.isDirectory() && !baseDir.mkdirs()) {
+            throw new IOException("Cannot create " + baseDir);
+        }
+
+        seed(RED_FILE);
+        seed(GREEN_FILE);
+        seed(BLUE_FILE);
+    }
+
+    private void seed(String name) throws IOException {
+        File file = new File(mBaseDir, name);
+        if (!file.exists()) {
+            super.writeValue(file, ColorController.DAY_MULTIPLIER);
+        }
+    }
+
+    @Override
+    protected void writeValue(File file, int value) throws IOException {
+        if (readValue(file) == value) {
+            ++mRedundantWriteCount;
+        }
+
+        long start = System.nanoTime();
+        super.writeValue(file, value);
+        mWriteNanos += System.nanoTime() - start;
+        ++mWriteCount;
+    }
+
+    /**
+     * Get the red value the fake panel currently holds
+     *
+     * @return The value of the red_multiplier file
+     */
+    public int getRed() {
+        return readValue(new File(mBaseDir, RED_FILE));
+    }
+
+    /**
+     * Get the green value the fake panel currently holds
+     *
+     * @return The value of the green_multiplier file
+     */
+    public int getGreen() {
+        return readValue(new File(mBaseDir, GREEN_FILE));
+    }
+
+    /**
+     * Get the blue value the fake panel currently holds
+     *
+     * @return The value of the blue_multiplier file
+     */
+    public int getBlue() {
+        return readValue(new File(mBaseDir, BLUE_FILE));
+    }
+
+    /**
+     * Change the values of the fake panel behind the back of the backend, e.g. to simulate a
+     * reboot that resets the kernel interface.
+     *
+     * @param red The new red value
+     * @param green The new green value
+     * @param blue The new blue value
+     * @throws IOException If the files cannot be written
+     */
+    public void setPanel(int red, int green, int blue) throws IOException {
+        super.writeValue(new File(mBaseDir, RED_FILE), red);
+        super.writeValue(new File(mBaseDir, GREEN_FILE), green);
+        super.writeValue(new File(mBaseDir, BLUE_FILE), blue);
+    }
+
+    /**
+     * Get the number of file writes performed through this backend
+     *
+     * @return The number of writes
+     */
+    public synchronized int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Get the number of file writes that wrote the value the file already contained
+     *
+     * @return The number of redundant writes
+     */
+    public synchronized int getRedundantWriteCount() {
+        return mRedundantWriteCount;
+    }
+
+    /**
+     * Get the total time spent writing files through this backend
+     *
+     * @return The time in nanoseconds
+     */
+    public synchronized long getWriteNanos() {
+        return mWriteNanos;
+    }
+}
@@ -0,0 +1,152 @@
+package de.content_space.nightcolors.core;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Process wide counters and histograms of the costs caused by the app.
+ *
+ * All storage is allocated up front, recording an event only updates a few longs.
+ */
+public final class NightColorsStats {
+    /**
+     * Histogram with power of two buckets: bucket i counts the values in [2^(i-1), 2^i).
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 32;
+
+        private final String mName;
+        private final String mUnit;
+        private final long[] mBuckets = new long[BUCKETS];
+        private long mCount = 0;
+        private long mSum = 0;
+        private long mMax = 0;
+
+        Histogram(String name, String unit) {
+            mName = name;
+            mUnit = unit;
+        }
+
+        /**
+         * Record a value
+         *
+         * @param value The value, negative values are counted as 0
+         */
+        public synchronized void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+            ++mBuckets[bucket];
+            ++mCount;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getSum() {
+            return mSum;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        synchronized void reset() {
+            Arrays.fill(mBuckets, 0);
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+
+        synchronized void dump(PrintWriter writer) {
+            writer.print(mName);
+            writer.print(": count=");
+            writer.print(mCount);
+            writer.print(" total=");
+            writer.print(mSum);
+            writer.print(mUnit);
+            writer.print(" mean=");
+            writer.print(mCount == 0 ? 0 : mSum / mCount);
+            writer.print(mUnit);
+            writer.print(" max=");
+            writer.print(mMax);
+            writer.println(mUnit);
+
+            for (int i = 0; i < BUCKETS; ++i) {
+                if (mBuckets[i] != 0) {
+                    writer.print("  <");
+                    writer.print(1L << i);
+                    writer.print(mUnit);
+                    writer.print(": ");
+                    writer.println(mBuckets[i]);
+                }
+            }
+        }
+    }
+
+    /** How long the wake lock is held */
+    public static final Histogram WAKE_LOCK = new Histogram("Wake lock held", "ms");
+    /** Wake locks that were released by their timeout instead of the command that acquired them */
+    public static final Histogram WAKE_LOCK_LEAKED = new Histogram("Wake lock leaked", "ms");
+    /** The delay between the scheduled time of an alarm and its delivery */
+    public static final Histogram ALARM_DRIFT = new Histogram("Alarm drift", "ms");
+    /** Alarms that were dropped as duplicate or stale, by how much older they were */
+    public static final Histogram DROPPED = new Histogram("Dropped alarms", "ms");
+    /** How long the service waits for the screen to be turned on */
+    public static final Histogram SCREEN_WAIT = new Histogram("Waiting for screen on", "s");
+    /** The time from the screen on broadcast until the staged colors are set */
+    public static final Histogram SCREEN_ON = new Histogram("Screen on to colors set", "us");
+    /** The time from a manual switch or snooze until its colors are set */
+    public static final Histogram MANUAL = new Histogram("Manual switch", "us");
+    /** The latency of a single write of a color value */
+    public static final Histogram WRITE = new Histogram("Color write", "us");
+    /** The time the settings screen needs on the main thread until it is created */
+    public static final Histogram ACTIVITY_CREATE = new Histogram("Settings screen create", "us");
+
+    private static final long START = System.currentTimeMillis();
+
+    private NightColorsStats() {
+    }
+
+    /**
+     * Clear all statistics, e.g. between the scenarios of a benchmark
+     */
+    public static void reset() {
+        WAKE_LOCK.reset();
+        WAKE_LOCK_LEAKED.reset();
+        ALARM_DRIFT.reset();
+        DROPPED.reset();
+        SCREEN_WAIT.reset();
+        SCREEN_ON.reset();
+        MANUAL.reset();
+        WRITE.reset();
+        ACTIVITY_CREATE.reset();
+    }
+
+    /**
+     * Print all statistics
+     *
+     * @param writer The writer to print to
+     */
+    public static void dump(PrintWriter writer) {
+        writer.print("Statistics since ");
+        writer.print(new Date(START));
+        writer.println(" (this process)");
+        WAKE_LOCK.dump(writer);
+        WAKE_LOCK_LEAKED.dump(writer);
+        ALARM_DRIFT.dump(writer);
+        DROPPED.dump(writer);
+        SCREEN_WAIT.dump(writer);
+        SCREEN_ON.dump(writer);
+        MANUAL.dump(writer);
+        WRITE.dump(writer);
+        ACTIVITY_CREATE.dump(writer);
+        writer.flush();
+    }
+}
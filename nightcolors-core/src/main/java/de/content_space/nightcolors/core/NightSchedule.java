@@ -0,0 +1,248 @@
+package de.content_space.nightcolors.core;
+
+import java.util.TimeZone;
+
+/**
+ * Immutable snapshot of the configured day and night times.
+ *
+ * All computations work on milliseconds since the epoch and minutes after midnight. They neither
+ * use Calendar nor allocate, so a snapshot can be queried on every alarm and screen on event.
+ * The schedule either has the same times on every day, follows the sun or repeats a
+ * WeeklyProfile with any number of segments per day. A solar schedule has no transition on the
+ * days of a polar night or of the midnight sun.
+ */
+public final class NightSchedule {
+    public static final long MINUTE_MILLIS = 60 * 1000;
+    public static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+
+    private final int mStart;
+    private final int mEnd;
+    private final SunSchedule mSun;
+    private final WeeklyProfile mWeek;
+
+    private NightSchedule(int start, int end, SunSchedule sun, WeeklyProfile week) {
+        mStart = start;
+        mEnd = end;
+        mSun = sun;
+        mWeek = week;
+    }
+
+    /**
+     * Create a schedule with the same times on every day
+     *
+     * @param start The start of the day in minutes after midnight
+     * @param end The start of the night in minutes after midnight
+     * @return The schedule
+     */
+    public static NightSchedule fixed(int start, int end) {
+        return new NightSchedule(start, end, null, null);
+    }
+
+    /**
+     * Create a schedule that follows the sunrise and sunset
+     *
+     * @param sun The sun schedule
+     * @return The schedule
+     */
+    public static NightSchedule solar(SunSchedule sun) {
+        return new NightSchedule(0, 0, sun, null);
+    }
+
+    /**
+     * Create a schedule that repeats every week
+     *
+     * @param week The weekly profile
+     * @return The schedule
+     */
+    public static NightSchedule weekly(WeeklyProfile week) {
+        return new NightSchedule(0, 0, null, week);
+    }
+
+    /**
+     * If the schedule can answer queries for the given local day and the day after it
+     *
+     * @param day The local day
+     * @return If the day is covered
+     */
+    public boolean covers(long day) {
+        return mSun == null || (mSun.covers(day) && mSun.covers(day + 1));
+    }
+
+    /**
+     * Get the beginning of the next day period
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @return The beginning of the next day period in milliseconds since the epoch, Long.MAX_VALUE
+     * if the sun schedule does not contain one
+     */
+    public long getBeginOfNextDay(long now, TimeZone tz) {
+        if (mWeek != null) {
+            return mWeek.getNext(now, tz, false);
+        }
+        if (mSun != null) {
+            return getNextSolar(now, tz, false);
+        }
+
+        long day = localDay(now, tz);
+        long result = toMillis(day, mStart, tz);
+
+        // if we are after that time, the next time is tomorrow
+        if (now > result) {
+            result = toMillis(day + 1, mStart, tz);
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the beginning of the next night period
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @return The beginning of the next night period in milliseconds since the epoch, Long.MAX_VALUE
+     * if the sun schedule does not contain one
+     */
+    public long getBeginOfNextNight(long now, TimeZone tz) {
+        if (mWeek != null) {
+            return mWeek.getNext(now, tz, true);
+        }
+        if (mSun != null) {
+            return getNextSolar(now, tz, true);
+        }
+
+        long day = localDay(now, tz);
+        long result = toMillis(day, mEnd, tz);
+
+        if (now > result) {
+            result = toMillis(day + 1, mEnd, tz);
+        }
+
+        return result;
+    }
+
+    /**
+     * If we are in the day period at the given time, i.e. if the next event is the beginning of
+     * the night
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @return If it is day
+     */
+    public boolean isDay(long now, TimeZone tz) {
+        long beginDay = getBeginOfNextDay(now, tz);
+        long beginNight = getBeginOfNextNight(now, tz);
+        if (beginDay == Long.MAX_VALUE && beginNight == Long.MAX_VALUE) {
+            // no transition until the end of the sun schedule
+            return mSun.getSunrise(localDay(now, tz)) == SunSchedule.MIDNIGHT_SUN;
+        }
+        return beginDay > beginNight;
+    }
+
+    /**
+     * Find the next sunrise or sunset, skipping the days without one
+     */
+    private long getNextSolar(long now, TimeZone tz, boolean night) {
+        for (long day = localDay(now, tz); mSun.covers(day); ++day) {
+            int minute = night ? mSun.getSunset(day) : mSun.getSunrise(day);
+            if (minute >= 0) {
+                long result = toMillis(day, minute, tz);
+                if (result >= now) {
+                    return result;
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Get the latest transition between day and night at or before the given time
+     *
+     * A weekly schedule answers this with a binary search, the others have at most two
+     * transitions per day.
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @return The time of the transition in milliseconds since the epoch, or a time more than a
+     * day ago if there was no transition within the last day
+     */
+    public long getPreviousTransition(long now, TimeZone tz) {
+        if (mWeek != null) {
+            return mWeek.getPrevious(now, tz);
+        }
+
+        // both transitions happen once within a local day, which is at most 25 hours long
+        long time = now - DAY_MILLIS - 60 * MINUTE_MILLIS;
+        long result = time;
+
+        while (true) {
+            long next = Math.min(getBeginOfNextDay(time, tz), getBeginOfNextNight(time, tz));
+            if (next > now) {
+                return result;
+            }
+            result = next;
+            time = next + 1;
+        }
+    }
+
+    /**
+     * Count the transitions between day and night in the given interval
+     *
+     * @param from The start of the interval in milliseconds since the epoch
+     * @param to The end of the interval in milliseconds since the epoch
+     * @param tz The time zone
+     * @return The number of transitions
+     */
+    public int countTransitions(long from, long to, TimeZone tz) {
+        int result = 0;
+        long time = from;
+
+        while (true) {
+            long next = Math.min(getBeginOfNextDay(time, tz), getBeginOfNextNight(time, tz));
+            if (next >= to) {
+                return result;
+            }
+            ++result;
+            time = next + 1;
+        }
+    }
+
+    /**
+     * Get the local day, i.e. the number of days since the epoch in the given time zone
+     *
+     * @param millis The time in milliseconds since the epoch
+     * @param tz The time zone
+     * @return The local day
+     */
+    public static long localDay(long millis, TimeZone tz) {
+        long local = millis + tz.getOffset(millis);
+        return local >= 0 ? local / DAY_MILLIS : (local - DAY_MILLIS + 1) / DAY_MILLIS;
+    }
+
+    /**
+     * Convert a local day and a time on that day to milliseconds since the epoch
+     *
+     * @param day The local day
+     * @param minute The time in minutes after midnight
+     * @param tz The time zone
+     * @return The time in milliseconds since the epoch
+     */
+    public static long toMillis(long day, int minute, TimeZone tz) {
+        long local = day * DAY_MILLIS + minute * MINUTE_MILLIS;
+        // Daylight saving time changes at most once around a day, so the offset is one of these.
+        int offsetBefore = tz.getOffset(local - DAY_MILLIS / 2);
+        int offsetAfter = tz.getOffset(local + DAY_MILLIS / 2);
+
+        // An ambiguous time is resolved to its first occurrence, i.e. the larger offset.
+        int first = Math.max(offsetBefore, offsetAfter);
+        int second = Math.min(offsetBefore, offsetAfter);
+        if (tz.getOffset(local - first) == first) {
+            return local - first;
+        } else if (tz.getOffset(local - second) == second) {
+            return local - second;
+        }
+
+        // The time is skipped by the change, use the time that has the same distance to the change.
+        return local - offsetBefore;
+    }
+}
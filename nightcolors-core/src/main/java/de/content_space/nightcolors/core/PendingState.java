@@ -0,0 +1,205 @@
+package de.content_space.nightcolors.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The colors that shall be set as soon as the screen is turned on.
+ *
+ * The state is staged with the multipliers of the night colors while the screen is off and stored
+ * in a small file, so after a restart of the service the screen on event only needs to read it
+ * instead of evaluating the schedule and the preferences. The day colors are always the full
+ * multipliers.
+ */
+public final class PendingState {
+    private static final String FILE_NAME = "pending_state.bin";
+    private static final int VERSION = 2;
+    /** version, direction, fade start and duration, red, green and blue */
+    private static final int SIZE = 1 + 1 + 8 + 8 + 4 + 4 + 4;
+
+    private final boolean mToNight;
+    private final long mFadeStart;
+    private final long mFadeDuration;
+    private final int mNightRed;
+    private final int mNightGreen;
+    private final int mNightBlue;
+
+    /**
+     * Construct a pending state
+     *
+     * @param toNight If the night colors shall be set
+     * @param fadeStart The start time of the fade in milliseconds since the epoch
+     * @param fadeDuration The duration of the fade in milliseconds, 0 for no fade
+     * @param nightRed The red multiplier of the night colors
+     * @param nightGreen The green multiplier of the night colors
+     * @param nightBlue The blue multiplier of the night colors
+     */
+    public PendingState(boolean toNight, long fadeStart, long fadeDuration, int nightRed,
+                        int nightGreen, int nightBlue) {
+        mToNight = toNight;
+        mFadeStart = fadeStart;
+        mFadeDuration = fadeDuration;
+        mNightRed = nightRed;
+        mNightGreen = nightGreen;
+        mNightBlue = nightBlue;
+    }
+
+    /**
+     * Create the pending state for the day or the classic night colors
+     *
+     * @param toNight If the night colors shall be set
+     * @param fadeStart The start time of the fade in milliseconds since the epoch
+     * @param fadeDuration The duration of the fade in milliseconds, 0 for no fade
+     * @return The pending state
+     */
+    public static PendingState forTarget(boolean toNight, long fadeStart, long fadeDuration) {
+        return forTarget(toNight, fadeStart, fadeDuration, ColorTemperature.CLASSIC, 100);
+    }
+
+    /**
+     * Create the pending state for the day or night colors
+     *
+     * @param toNight If the night colors shall be set
+     * @param fadeStart The start time of the fade in milliseconds since the epoch
+     * @param fadeDuration The duration of the fade in milliseconds, 0 for no fade
+     * @param kelvin The color temperature of the night or ColorTemperature.CLASSIC
+     * @param redPercent The red intensity of the night in percent
+     * @return The pending state
+     */
+    public static PendingState forTarget(boolean toNight, long fadeStart, long fadeDuration,
+                                         int kelvin, int redPercent) {
+        int red = (int) ((long) ColorController.DAY_MULTIPLIER * redPercent / 100);
+        if (kelvin == ColorTemperature.CLASSIC) {
+            return new PendingState(toNight, fadeStart, fadeDuration, red,
+                    ColorController.NIGHT_MULTIPLIER, ColorController.NIGHT_MULTIPLIER);
+        }
+        return new PendingState(toNight, fadeStart, fadeDuration, red,
+                ColorTemperature.getGreen(kelvin), ColorTemperature.getBlue(kelvin));
+    }
+
+    /**
+     * Get the same colors without a fade
+     *
+     * @return The state that sets the final colors directly
+     */
+    public PendingState withoutFade() {
+        if (mFadeDuration == 0) {
+            return this;
+        }
+        return new PendingState(mToNight, 0, 0, mNightRed, mNightGreen, mNightBlue);
+    }
+
+    public boolean isToNight() {
+        return mToNight;
+    }
+
+    public long getFadeStart() {
+        return mFadeStart;
+    }
+
+    public long getFadeDuration() {
+        return mFadeDuration;
+    }
+
+    /**
+     * @return The final red multiplier
+     */
+    public int getRed() {
+        return mToNight ? mNightRed : ColorController.DAY_MULTIPLIER;
+    }
+
+    /**
+     * @return The final green multiplier
+     */
+    public int getGreen() {
+        return mToNight ? mNightGreen : ColorController.DAY_MULTIPLIER;
+    }
+
+    /**
+     * @return The final blue multiplier
+     */
+    public int getBlue() {
+        return mToNight ? mNightBlue : ColorController.DAY_MULTIPLIER;
+    }
+
+    public int getNightRed() {
+        return mNightRed;
+    }
+
+    public int getNightGreen() {
+        return mNightGreen;
+    }
+
+    public int getNightBlue() {
+        return mNightBlue;
+    }
+
+    /**
+     * Get the file in which the pending state is stored
+     *
+     * @param filesDir The files directory of the app
+     * @return The file
+     */
+    public static File getFile(File filesDir) {
+        return new File(filesDir, FILE_NAME);
+    }
+
+    /**
+     * Store the state
+     *
+     * @param file The file to write
+     * @throws IOException If the file cannot be written
+     */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeByte(VERSION);
+            out.writeBoolean(mToNight);
+            out.writeLong(mFadeStart);
+            out.writeLong(mFadeDuration);
+            out.writeInt(mNightRed);
+            out.writeInt(mNightGreen);
+            out.writeInt(mNightBlue);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Load a stored state
+     *
+     * @param file The file to read
+     * @return The state or null if none is stored
+     * @throws IOException If the file exists but cannot be read
+     */
+    public static PendingState load(File file) throws IOException {
+        if (file.length() != SIZE) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+
+            return new PendingState(in.readBoolean(), in.readLong(), in.readLong(),
+                    in.readInt(), in.readInt(), in.readInt());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Remove a stored state
+     *
+     * @param file The file of the state
+     */
+    public static void clear(File file) {
+        file.delete();
+    }
+}
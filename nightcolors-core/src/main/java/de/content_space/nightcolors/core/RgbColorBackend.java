@@ -0,0 +1,134 @@
+package de.content_space.nightcolors.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Color backend for interfaces that take all three channels as "red green blue" in a single file,
+ * like kcal and the sensorRGB node of mdnie.
+ *
+ * Every channel has its own linear curve: the multiplier scales the value that DeviceProfile found
+ * for the channel when it probed the interface, i.e. the calibration of the panel, and the result
+ * is kept above the floor of the channel. So the day restores the calibration of all three
+ * channels and the night colors keep its balance. The floors and maxima are computed once per
+ * profile into two small arrays. Like SysfsColorBackend, the file is only written if the values
+ * change, optionally through a RootShell.
+ */
+public class RgbColorBackend implements ColorBackend {
+    private final File mFile;
+    private final File mEnableFile;
+    private final int[] mFloor;
+    private final int[] mMax;
+    private final RootShell mShell;
+    private boolean mReadBack = false;
+    /** If the values still have to be activated through the enable file */
+    private boolean mEnable = false;
+    private String mCurrent = null;
+
+    /**
+     * Construct a backend for the given file
+     *
+     * @param file The file that takes the three values
+     * @param enableFile A file in which 1 must be written to activate the values, or null
+     * @param min The smallest value that shall be written
+     * @param max The value of a channel at full intensity
+     * @param calibratedRed The value of red at full intensity, e.g. the calibration of the panel
+     */
+    public RgbColorBackend(File file, File enableFile, int min, int max, int calibratedRed) {
+        this(file, enableFile, min, max, calibratedRed, null);
+    }
+
+    /**
+     * Construct a backend for the given file
+     *
+     * @param file The file that takes the three values
+     * @param enableFile A file in which 1 must be written to activate the values, or null
+     * @param min The smallest value that shall be written
+     * @param max The value of a channel at full intensity
+     * @param calibratedRed The value of red at full intensity, e.g. the calibration of the panel
+     * @param shell The shell that writes the files or null to write them directly
+     */
+    public RgbColorBackend(File file, File enableFile, int min, int max, int calibratedRed, RootShell shell) {
+        this(file, enableFile, new int[]{min, min, min}, new int[]{calibratedRed, max, max}, shell);
+    }
+
+    /**
+     * Construct a backend with a curve per channel
+     *
+     * @param file The file that takes the three values
+     * @param enableFile A file in which 1 must be written to activate the values, or null
+     * @param floor The smallest value of red, green and blue that shall be written
+     * @param max The values of red, green and blue at full intensity, e.g. the calibration of the panel
+     * @param shell The shell that writes the files or null to write them directly
+     */
+    public RgbColorBackend(File file, File enableFile, int[] floor, int[] max, RootShell shell) {
+        mShell = shell;
+        mFile = file;
+        mEnableFile = enableFile;
+        mMax = max.clone();
+        mFloor = new int[3];
+        for (int i = 0; i < 3; ++i) {
+            // a channel that is calibrated below the floor keeps its calibration
+            mFloor[i] = Math.min(floor[i], mMax[i]);
+        }
+    }
+
+    @Override
+    public synchronized boolean setMultipliers(int red, int green, int blue) throws IOException {
+        if (!mReadBack) {
+            // the red value read here might already be the one of the night colors
+            mCurrent = SysfsColorBackend.readString(mFile);
+
+            mEnable = mEnableFile != null && !"1".equals(SysfsColorBackend.readString(mEnableFile));
+
+            mReadBack = true;
+        }
+
+        String value = format(red, green, blue);
+        if (value.equals(mCurrent) && !mEnable) {
+            return false;
+        }
+
+        mCurrent = null; // if the write fails we do not know what the panel holds
+        if (mShell != null) {
+            if (mEnable) {
+                mShell.write(new File[]{mEnableFile, mFile}, new String[]{"1", value}, 2);
+            } else {
+                mShell.write(new File[]{mFile}, new String[]{value}, 1);
+            }
+        } else {
+            if (mEnable) {
+                SysfsColorBackend.writeString(mEnableFile, "1");
+            }
+            SysfsColorBackend.writeString(mFile, value);
+        }
+        mEnable = false;
+        mCurrent = value;
+        return true;
+    }
+
+    /**
+     * Get the text that is written for the given multipliers
+     *
+     * @param red The red multiplier
+     * @param green The green multiplier
+     * @param blue The blue multiplier
+     * @return The values of the three channels separated by spaces
+     */
+    String format(int red, int green, int blue) {
+        return scale(red, 0) + " " + scale(green, 1) + " " + scale(blue, 2);
+    }
+
+    /**
+     * Map a multiplier on the curve of a channel
+     *
+     * @param multiplier The multiplier, DAY_MULTIPLIER is full intensity
+     * @param channel 0 for red, 1 for green and 2 for blue
+     * @return The value for the file
+     */
+    int scale(int multiplier, int channel) {
+        int max = mMax[channel];
+        long value = ((long) multiplier * max + ColorController.DAY_MULTIPLIER / 2) / ColorController.DAY_MULTIPLIER;
+        return (int) Math.max(mFloor[channel], Math.min(max, value));
+    }
+}
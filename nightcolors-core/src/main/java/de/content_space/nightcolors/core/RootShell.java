@@ -0,0 +1,221 @@
+package de.content_space.nightcolors.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long-lived shell session, usually started with su, for sysfs files that only root can write.
+ *
+ * All values of a transition are written with a single script: every file is written and read
+ * back, then an end marker is printed. The read back values are compared to the written ones,
+ * so a write that the shell could not perform is reported as an error. The shell is started on
+ * the first write and started again if it has died. A reader thread blocks on the output of the
+ * shell, the writing thread waits for its lines with a timeout.
+ */
+public class RootShell {
+    /** The command that starts the shell on a rooted device */
+    public static final String SU = "su";
+    /** The time to wait for the first answer, the user might have to grant root access */
+    private static final long START_TIMEOUT = 30 * 1000;
+    /** The time to wait for the answer to a batch of writes */
+    private static final long TIMEOUT = 5 * 1000;
+    private static final String MARKER = "nightcolors-done-";
+    /** Queued by the reader thread when the output of the shell has ended, compared by identity */
+    private static final String END = new String("end");
+
+    private final String[] mCommand;
+    private Process mProcess = null;
+    private OutputStream mIn = null;
+    private BlockingQueue<String> mLines = null;
+    private int mSequence = 0;
+    private int mRoundTrips = 0;
+
+    /**
+     * Construct a session that uses su
+     */
+    public RootShell() {
+        this(SU);
+    }
+
+    /**
+     * Construct a session that uses the given command, e.g. /bin/sh for tests
+     *
+     * @param command The command and its arguments
+     */
+    public RootShell(String... command) {
+        mCommand = command.clone();
+    }
+
+    /**
+     * Write values to files in a single round-trip and verify them by reading them back
+     *
+     * @param files The files
+     * @param values The values, one per file
+     * @param count The number of files to write
+     * @throws IOException If the shell cannot be started, does not answer or a file does not
+     *                     contain the value afterwards
+     */
+    public synchronized void write(File[] files, String[] values, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        boolean firstAnswer = false;
+        if (mProcess == null || hasExited()) {
+            close();
+            ProcessBuilder builder = new ProcessBuilder(mCommand);
+            builder.redirectErrorStream(true);
+            mProcess = builder.start();
+            mIn = mProcess.getOutputStream();
+            mLines = startReader(mProcess.getInputStream());
+            firstAnswer = true;
+        }
+
+        String marker = MARKER + (++mSequence);
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            String path = quote(files[i].getPath());
+            script.append("echo ").append(quote(values[i])).append(" > ").append(path).append(" 2>/dev/null; ");
+            // one line per file, even if it cannot be read
+            script.append("echo \"$(cat ").append(path).append(" 2>/dev/null)\"\n");
+        }
+        script.append("echo ").append(marker).append('\n');
+
+        try {
+            mIn.write(script.toString().getBytes("US-ASCII"));
+            mIn.flush();
+
+            long deadline = System.currentTimeMillis() + (firstAnswer ? START_TIMEOUT : TIMEOUT);
+            String[] readBack = new String[count];
+            int lines = 0;
+            String line;
+            // skip anything the shell printed before, e.g. a message of su
+            while (!(line = readLine(deadline)).equals(marker)) {
+                System.arraycopy(readBack, 1, readBack, 0, count - 1);
+                readBack[count - 1] = line;
+                ++lines;
+            }
+
+            ++mRoundTrips;
+
+            if (lines < count) {
+                throw new IOException("The shell answered " + lines + " lines for " + count + " files");
+            }
+
+            for (int i = 0; i < count; ++i) {
+                if (!values[i].equals(readBack[i].trim())) {
+                    throw new IOException("Could not write " + values[i] + " to " + files[i]
+                            + ", it contains \"" + readBack[i] + "\"");
+                }
+            }
+        } catch (IOException e) {
+            if (hasExited()) {
+                close();
+            }
+            throw e;
+        } finally {
+            NightColorsStats.WRITE.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Start the thread that reads the output of a session until it ends
+     *
+     * @param out The output of the shell
+     * @return The queue that receives the lines, followed by END
+     */
+    private static BlockingQueue<String> startReader(final InputStream out) {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        Thread reader = new Thread("NightColorsShell") {
+            @Override
+            public void run() {
+                try {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(out, "US-ASCII"));
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException e) {
+                    // the session has been closed
+                } finally {
+                    lines.add(END);
+                }
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+        return lines;
+    }
+
+    private String readLine(long deadline) throws IOException {
+        String line;
+        try {
+            line = mLines.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the shell");
+        }
+
+        if (line == null) {
+            // the answer would no longer match the next script
+            close();
+            throw new IOException("The shell " + mCommand[0] + " did not answer");
+        }
+        if (line == END) {
+            // a shell that died has already delivered its remaining output
+            close();
+            throw new IOException("The shell " + mCommand[0] + " has closed its output");
+        }
+        return line;
+    }
+
+    private boolean hasExited() {
+        if (mProcess == null) {
+            return true;
+        }
+        try {
+            mProcess.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Quote a string for the shell
+     *
+     * @param value The string
+     * @return The string in single quotes
+     */
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * @return The number of completed round-trips
+     */
+    public synchronized int getRoundTripCount() {
+        return mRoundTrips;
+    }
+
+    /**
+     * End the session, the next write starts a new one
+     */
+    public synchronized void close() {
+        if (mProcess != null) {
+            // also ends the reader thread of the session
+            mProcess.destroy();
+            mProcess = null;
+            mIn = null;
+            mLines = null;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package de.content_space.nightcolors.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Table of the local sunrise and sunset times for a location, computed offline for one year.
+ *
+ * The times are computed with the sunrise algorithm of the Almanac for Computers (accurate to
+ * about a minute) once for the coming year. The table is kept in memory and stored in a file so
+ * that alarms and screen on events only need a table lookup, even in a new process.
+ *
+ * Days on which the sun does not rise or does not set have no transition, they are marked with
+ * POLAR_NIGHT or MIDNIGHT_SUN instead of a time. The state of the previous days simply continues.
+ */
+public class SunSchedule {
+    /** The number of days covered by a table */
+    static final int DAYS = 366;
+    /** Sunrise and sunset value for days on which the sun does not rise */
+    public static final int POLAR_NIGHT = -1;
+    /** Sunrise and sunset value for days on which the sun does not set */
+    public static final int MIDNIGHT_SUN = -2;
+    private static final String FILE_NAME = "sun_schedule.bin";
+    private static final int FILE_MAGIC = 0x53554e32; // "SUN2"
+    private static final double ZENITH = 90.833;
+
+    private static SunSchedule sCached = null;
+
+    private final double mLatitude;
+    private final double mLongitude;
+    private final String mTimeZoneId;
+    private final long mFirstDay;
+    private final short[] mSunrise;
+    private final short[] mSunset;
+
+    private SunSchedule(double latitude, double longitude, String timeZoneId, long firstDay,
+                        short[] sunrise, short[] sunset) {
+        mLatitude = latitude;
+        mLongitude = longitude;
+        mTimeZoneId = timeZoneId;
+        mFirstDay = firstDay;
+        mSunrise = sunrise;
+        mSunset = sunset;
+    }
+
+    /**
+     * Get the sun schedule for the given location and the current time zone.
+     *
+     * The schedule is taken from memory or from the cache file if it covers the current day,
+     * otherwise it is computed for the coming year and stored.
+     *
+     * The cache file is only an optimization, errors reading or writing it are ignored.
+     *
+     * @param filesDir The directory that holds the cache file
+     * @param latitude The latitude in degrees, north is positive
+     * @param longitude The longitude in degrees, east is positive
+     * @param tz The time zone
+     * @param now The current time in milliseconds since the epoch
+     * @return The sun schedule
+     */
+    public static synchronized SunSchedule get(File filesDir, double latitude, double longitude,
+                                               TimeZone tz, long now) {
+        long today = NightSchedule.localDay(now, tz);
+
+        if (sCached != null && sCached.matches(latitude, longitude, tz, today)) {
+            return sCached;
+        }
+
+        File file = new File(filesDir, FILE_NAME);
+        SunSchedule schedule = load(file);
+
+        if (schedule == null || !schedule.matches(latitude, longitude, tz, today)) {
+            schedule = compute(latitude, longitude, tz, today);
+            try {
+                schedule.save(file);
+            } catch (IOException e) {
+                // the schedule is computed again next time
+            }
+        }
+
+        sCached = schedule;
+        return schedule;
+    }
+
+    private boolean matches(double latitude, double longitude, TimeZone tz, long today) {
+        // at least half a year is left to find the end of a polar night or of the midnight sun
+        return mLatitude == latitude && mLongitude == longitude
+                && mTimeZoneId.equals(tz.getID())
+                && today >= mFirstDay && today + DAYS / 2 < mFirstDay + mSunrise.length;
+    }
+
+    /**
+     * If the schedule contains the given day
+     *
+     * @param day The local day
+     * @return If the day is contained
+     */
+    public boolean covers(long day) {
+        return day >= mFirstDay && day < mFirstDay + mSunrise.length;
+    }
+
+    /**
+     * Get the sunrise of a day
+     *
+     * @param day The local day, must be covered by the schedule
+     * @return The sunrise in minutes after midnight, POLAR_NIGHT or MIDNIGHT_SUN if there is none
+     */
+    public int getSunrise(long day) {
+        return mSunrise[(int) (day - mFirstDay)];
+    }
+
+    /**
+     * Get the sunset of a day
+     *
+     * @param day The local day, must be covered by the schedule
+     * @return The sunset in minutes after midnight, POLAR_NIGHT or MIDNIGHT_SUN if there is none
+     */
+    public int getSunset(long day) {
+        return mSunset[(int) (day - mFirstDay)];
+    }
+
+    /**
+     * Compute the schedule for DAYS days starting at the given day.
+     */
+    public static SunSchedule compute(double latitude, double longitude, TimeZone tz, long firstDay) {
+        short[] sunrise = new short[DAYS];
+        short[] sunset = new short[DAYS];
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        for (int i = 0; i < DAYS; ++i) {
+            long noon = (firstDay + i) * NightSchedule.DAY_MILLIS + NightSchedule.DAY_MILLIS / 2;
+            utc.setTimeInMillis(noon);
+            int dayOfYear = utc.get(Calendar.DAY_OF_YEAR);
+
+            double rise = computeUtcHours(dayOfYear, latitude, longitude, true);
+            double set = computeUtcHours(dayOfYear, latitude, longitude, false);
+
+            if (Double.isInfinite(rise) || Double.isInfinite(set)) {
+                double polar = Double.isInfinite(rise) ? rise : set;
+                short state = (short) (polar < 0 ? POLAR_NIGHT : MIDNIGHT_SUN);
+                sunrise[i] = state;
+                sunset[i] = state;
+            } else {
+                sunrise[i] = (short) toLocalMinutes(rise, noon, tz);
+                sunset[i] = (short) toLocalMinutes(set, noon, tz);
+            }
+        }
+
+        return new SunSchedule(latitude, longitude, tz.getID(), firstDay, sunrise, sunset);
+    }
+
+    private static int toLocalMinutes(double utcHours, long noon, TimeZone tz) {
+        int minutes = (int) Math.round(utcHours * 60) + tz.getOffset(noon) / 60000;
+        return ((minutes % (24 * 60)) + 24 * 60) % (24 * 60);
+    }
+
+    /**
+     * Compute the sunrise or sunset of a day.
+     *
+     * @param dayOfYear The day of the year, starting at 1
+     * @param latitude The latitude in degrees
+     * @param longitude The longitude in degrees
+     * @param rise If the sunrise shall be computed, otherwise the sunset
+     * @return The time in hours UTC, negative infinity if the sun does not rise on that day and
+     * positive infinity if it does not set
+     */
+    static double computeUtcHours(int dayOfYear, double latitude, double longitude, boolean rise) {
+        double lngHour = longitude / 15;
+        double t = dayOfYear + ((rise ? 6 : 18) - lngHour) / 24;
+
+        double meanAnomaly = 0.9856 * t - 3.289;
+        double trueLongitude = normalizeDegrees(meanAnomaly
+                + 1.916 * Math.sin(Math.toRadians(meanAnomaly))
+                + 0.020 * Math.sin(Math.toRadians(2 * meanAnomaly)) + 282.634);
+
+        double rightAscension = normalizeDegrees(Math.toDegrees(
+                Math.atan(0.91764 * Math.tan(Math.toRadians(trueLongitude)))));
+        // the right ascension needs to be in the same quadrant as the true longitude
+        rightAscension += Math.floor(trueLongitude / 90) * 90 - Math.floor(rightAscension / 90) * 90;
+        rightAscension /= 15;
+
+        double sinDeclination = 0.39782 * Math.sin(Math.toRadians(trueLongitude));
+        double cosDeclination = Math.cos(Math.asin(sinDeclination));
+        double cosHourAngle = (Math.cos(Math.toRadians(ZENITH))
+                - sinDeclination * Math.sin(Math.toRadians(latitude)))
+                / (cosDeclination * Math.cos(Math.toRadians(latitude)));
+
+        if (cosHourAngle > 1) {
+            return Double.NEGATIVE_INFINITY;
+        } else if (cosHourAngle < -1) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double hourAngle = Math.toDegrees(Math.acos(cosHourAngle));
+        if (rise) {
+            hourAngle = 360 - hourAngle;
+        }
+        hourAngle /= 15;
+
+        double localMeanTime = hourAngle + rightAscension - 0.06571 * t - 6.622;
+        double utc = (localMeanTime - lngHour) % 24;
+        return utc < 0 ? utc + 24 : utc;
+    }
+
+    private static double normalizeDegrees(double degrees) {
+        double result = degrees % 360;
+        return result < 0 ? result + 360 : result;
+    }
+
+    private void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeDouble(mLatitude);
+            out.writeDouble(mLongitude);
+            out.writeUTF(mTimeZoneId);
+            out.writeLong(mFirstDay);
+            out.writeInt(mSunrise.length);
+            for (int i = 0; i < mSunrise.length; ++i) {
+                out.writeShort(mSunrise[i]);
+                out.writeShort(mSunset[i]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static SunSchedule load(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_MAGIC) {
+                    return null;
+                }
+
+                double latitude = in.readDouble();
+                double longitude = in.readDouble();
+                String timeZoneId = in.readUTF();
+                long firstDay = in.readLong();
+                int length = in.readInt();
+                if (length <= 0 || length > DAYS) {
+                    return null;
+                }
+
+                short[] sunrise = new short[length];
+                short[] sunset = new short[length];
+                for (int i = 0; i < length; ++i) {
+                    sunrise[i] = in.readShort();
+                    sunset[i] = in.readShort();
+                }
+
+                return new SunSchedule(latitude, longitude, timeZoneId, firstDay, sunrise, sunset);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package de.content_space.nightcolors.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Color backend that writes the multipliers to the green_multiplier and blue_multiplier files of
+ * a sysfs directory like the samoled_color interface of the Galaxy Nexus, and optionally to the
+ * red_multiplier file.
+ *
+ * The current values are read back once when the first values are set, afterwards only the
+ * values written by this backend are remembered. A channel is only written if its value changes.
+ * If the files are only writable by root, the changed channels are written through a RootShell
+ * in a single round-trip.
+ */
+public class SysfsColorBackend implements ColorBackend {
+    public static final String SAMOLED_PATH = "/sys/class/misc/samoled_color/";
+    static final String RED_FILE = "red_multiplier";
+    static final String GREEN_FILE = "green_multiplier";
+    static final String BLUE_FILE = "blue_multiplier";
+    private static final int UNKNOWN = -1;
+
+    private final File mRedFile;
+    private final File mGreenFile;
+    private final File mBlueFile;
+    private final RootShell mShell;
+    private boolean mReadBack = false;
+    private int mRed = UNKNOWN;
+    private int mGreen = UNKNOWN;
+    private int mBlue = UNKNOWN;
+
+    /**
+     * Construct a backend for the given sysfs directory
+     *
+     * @param baseDir The directory that contains the multiplier files
+     */
+    public SysfsColorBackend(File baseDir) {
+        this(baseDir, false);
+    }
+
+    /**
+     * Construct a backend for the given sysfs directory
+     *
+     * @param baseDir The directory that contains the multiplier files
+     * @param red If the red multiplier shall be written, too
+     */
+    public SysfsColorBackend(File baseDir, boolean red) {
+        this(baseDir, red, null);
+    }
+
+    /**
+     * Construct a backend for the given sysfs directory
+     *
+     * @param baseDir The directory that contains the multiplier files
+     * @param red If the red multiplier shall be written, too
+     * @param shell The shell that writes the files or null to write them directly
+     */
+    public SysfsColorBackend(File baseDir, boolean red, RootShell shell) {
+        mShell = shell;
+        mRedFile = red ? new File(baseDir, RED_FILE) : null;
+        mGreenFile = new File(baseDir, GREEN_FILE);
+        mBlueFile = new File(baseDir, BLUE_FILE);
+    }
+
+    @Override
+    public synchronized boolean setMultipliers(int red, int green, int blue) throws IOException {
+        if (!mReadBack) {
+            if (mRedFile != null) {
+                mRed = readValue(mRedFile);
+            }
+            mGreen = readValue(mGreenFile);
+            mBlue = readValue(mBlueFile);
+            mReadBack = true;
+        }
+
+        File[] files = new File[3];
+        int[] values = new int[3];
+        int count = 0;
+
+        if (mRedFile != null && mRed != red) {
+            files[count] = mRedFile;
+            values[count++] = red;
+        }
+        if (mGreen != green) {
+            files[count] = mGreenFile;
+            values[count++] = green;
+        }
+        if (mBlue != blue) {
+            files[count] = mBlueFile;
+            values[count++] = blue;
+        }
+
+        if (count == 0) {
+            return false;
+        }
+
+        // if the write fails we do not know what the panel holds
+        mRed = mRedFile != null && mRed != red ? UNKNOWN : mRed;
+        mGreen = mGreen != green ? UNKNOWN : mGreen;
+        mBlue = mBlue != blue ? UNKNOWN : mBlue;
+
+        if (mShell != null) {
+            String[] strings = new String[count];
+            for (int i = 0; i < count; ++i) {
+                strings[i] = Integer.toString(values[i]);
+            }
+            mShell.write(files, strings, count);
+        } else {
+            for (int i = 0; i < count; ++i) {
+                writeValue(files[i], values[i]);
+            }
+        }
+
+        mRed = mRedFile != null ? red : mRed;
+        mGreen = green;
+        mBlue = blue;
+        return true;
+    }
+
+    /**
+     * Forget the remembered values so they are read back again before the next write, e.g. when
+     * something else might have changed them.
+     */
+    public synchronized void invalidate() {
+        mReadBack = false;
+        mRed = UNKNOWN;
+        mGreen = UNKNOWN;
+        mBlue = UNKNOWN;
+    }
+
+    /**
+     * Write a single value to a sysfs file.
+     *
+     * @param file The file to write to
+     * @param value The value to write
+     * @throws IOException If the value could not be written
+     */
+    protected void writeValue(File file, int value) throws IOException {
+        writeString(file, Integer.toString(value));
+    }
+
+    /**
+     * Read a single value from a sysfs file.
+     *
+     * @param file The file to read
+     * @return The value or UNKNOWN if it cannot be read or parsed
+     */
+    protected int readValue(File file) {
+        String value = readString(file);
+        if (value == null) {
+            return UNKNOWN;
+        }
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Write a string to a sysfs file.
+     *
+     * In contrast to PrintWriter, errors during writing and closing are reported.
+     *
+     * @param file The file to write to
+     * @param value The string to write
+     * @throws IOException If the string could not be written
+     */
+    static void writeString(File file, String value) throws IOException {
+        long start = System.nanoTime();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(value.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+            NightColorsStats.WRITE.record((System.nanoTime() - start) / 1000);
+        }
+    }
+
+    /**
+     * Read the short content of a sysfs file.
+     *
+     * @param file The file to read
+     * @return The trimmed content or null if it cannot be read
+     */
+    static String readString(File file) {
+        byte[] buffer = new byte[32];
+        int length = 0;
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                int read;
+                while (length < buffer.length
+                        && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+                    length += read;
+                }
+            } finally {
+                in.close();
+            }
+
+            return new String(buffer, 0, length, "US-ASCII").trim();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
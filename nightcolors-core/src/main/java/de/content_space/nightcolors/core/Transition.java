@@ -0,0 +1,84 @@
+package de.content_space.nightcolors.core;
+
+import java.util.TimeZone;
+
+/**
+ * A transition between day and night at a point in time.
+ *
+ * The transition alarm is armed for next() and when it fires, latest() replaces it by the
+ * latest passed transition if the alarm was delivered so late that further transitions have
+ * passed in the meantime, e.g. because the device was asleep. The app and the simulation arm and
+ * correct their alarms only through these methods.
+ */
+public final class Transition {
+    private final long mTime;
+    private final boolean mToNight;
+
+    /**
+     * Construct a transition
+     *
+     * @param time The time of the transition in milliseconds since the epoch
+     * @param toNight If the transition goes to the night colors
+     */
+    public Transition(long time, boolean toNight) {
+        mTime = time;
+        mToNight = toNight;
+    }
+
+    /**
+     * Get the first transition after the given time
+     *
+     * @param schedule The schedule
+     * @param after The time after which the transition shall happen
+     * @param tz The time zone
+     * @return The transition or null if the schedule has none, e.g. during a long polar night
+     */
+    public static Transition next(NightSchedule schedule, long after, TimeZone tz) {
+        long beginDay = schedule.getBeginOfNextDay(after, tz);
+        long beginNight = schedule.getBeginOfNextNight(after, tz);
+        boolean toNight = beginNight < beginDay;
+        long time = toNight ? beginNight : beginDay;
+        return time == Long.MAX_VALUE ? null : new Transition(time, toNight);
+    }
+
+    /**
+     * Get the transition that a delivered alarm shall apply
+     *
+     * @param schedule The schedule
+     * @param now The time at which the alarm is delivered
+     * @param tz The time zone
+     * @return This transition or the latest transition before now if that is newer
+     */
+    public Transition latest(NightSchedule schedule, long now, TimeZone tz) {
+        long latest = schedule.getPreviousTransition(now, tz);
+        if (latest > mTime) {
+            return new Transition(latest, !schedule.isDay(latest + 1, tz));
+        }
+        return this;
+    }
+
+    /**
+     * Get the time after which the following transition is armed. The same transition is never
+     * armed again, even if its alarm is delivered early.
+     *
+     * @param now The time at which the alarm is delivered
+     * @return The time in milliseconds since the epoch
+     */
+    public long getFollowingAfter(long now) {
+        return Math.max(now, mTime) + 1;
+    }
+
+    /**
+     * @return The time of the transition in milliseconds since the epoch
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return If the transition goes to the night colors
+     */
+    public boolean isToNight() {
+        return mToNight;
+    }
+}
@@ -0,0 +1,102 @@
+package de.content_space.nightcolors.core;
+
+/**
+ * Drops transition alarms that are delivered twice, out of order or after a newer transition
+ * has already been applied, so every transition is applied once.
+ *
+ * Each armed transition carries its scheduled time and a sequence number that grows with every
+ * armed alarm. The check only compares these numbers with the last accepted transition, it
+ * does not touch any file. The app stores the last accepted transition, so a new process does
+ * not apply an alarm again that a killed process has already applied.
+ */
+public final class TransitionOrder {
+    private long mLastSequence;
+    private long mLastTime;
+
+    /**
+     * Construct an order without any accepted transition
+     */
+    public TransitionOrder() {
+        this(0, Long.MIN_VALUE);
+    }
+
+    /**
+     * Construct an order that continues a stored one
+     *
+     * @param lastSequence The sequence number of the last accepted transition, 0 if none
+     * @param lastTime The time of the last accepted transition, Long.MIN_VALUE if none
+     */
+    public TransitionOrder(long lastSequence, long lastTime) {
+        mLastSequence = lastSequence;
+        mLastTime = lastTime;
+    }
+
+    /**
+     * Check a transition alarm and remember it if it is accepted
+     *
+     * @param sequence The sequence number of the alarm, 0 if it has none
+     * @param time The scheduled time of the transition in milliseconds since the epoch
+     * @return If the transition shall be applied
+     */
+    public synchronized boolean acceptTransition(long sequence, long time) {
+        if ((sequence != 0 && sequence <= mLastSequence) || time < mLastTime) {
+            drop(time);
+            return false;
+        }
+
+        if (sequence != 0) {
+            mLastSequence = sequence;
+        }
+        mLastTime = time;
+        return true;
+    }
+
+    /**
+     * Check the step of a fade
+     *
+     * @param fadeStart The start of the fade in milliseconds since the epoch
+     * @return False if the fade belongs to a transition before the last accepted one
+     */
+    public synchronized boolean acceptFadeStep(long fadeStart) {
+        if (fadeStart < mLastTime) {
+            drop(fadeStart);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The colors have been set by hand, fade steps of the transitions before are outdated
+     *
+     * @param time The time of the manual switch in milliseconds since the epoch
+     */
+    public synchronized void onManual(long time) {
+        mLastTime = Math.max(mLastTime, time);
+    }
+
+    private void drop(long time) {
+        NightColorsStats.DROPPED.record(mLastTime == Long.MIN_VALUE ? 0 : mLastTime - time);
+    }
+
+    /**
+     * Forget the accepted transitions, e.g. after the clock has been set back. The sequence
+     * numbers keep growing, so only the times are forgotten.
+     */
+    public synchronized void reset() {
+        mLastTime = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return The sequence number of the last accepted transition, 0 if none
+     */
+    public synchronized long getLastSequence() {
+        return mLastSequence;
+    }
+
+    /**
+     * @return The time of the last accepted transition or manual switch, Long.MIN_VALUE if none
+     */
+    public synchronized long getLastTime() {
+        return mLastTime;
+    }
+}
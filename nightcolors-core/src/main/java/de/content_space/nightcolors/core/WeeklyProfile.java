@@ -0,0 +1,262 @@
+package de.content_space.nightcolors.core;
+
+import java.util.Arrays;
+import java.util.TimeZone;
+
+/**
+ * A schedule that repeats every week and can have any number of day and night segments per day.
+ *
+ * The transitions are stored in one sorted int array, each entry is the minute of the week
+ * (Monday 00:00 is 0) times two plus one if a night starts. Consecutive transitions to the same
+ * state are removed, so the entries alternate between day and night and the next transition of
+ * either kind is found with one binary search.
+ *
+ * The text format consists of entries separated by semicolons or line breaks. Each entry starts
+ * with the days it applies to, followed by pairs of time and state, e.g.
+ * "Mo-Fr 07:00 day 19:30 night; Sa,Su 09:00 day 22:00 night 22:30 day 23:30 night". A state
+ * lasts until the next transition, also across days.
+ *
+ * Every segment is either day or night, there are no intermediate color levels. A reading window
+ * is a day segment within the night, as in the example, but a dimmed evening cannot be expressed;
+ * the configured night colors are used for every night segment.
+ */
+public final class WeeklyProfile {
+    public static final int MINUTES_PER_DAY = 24 * 60;
+    public static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+    private static final String[] DAY_NAMES = {"mo", "tu", "we", "th", "fr", "sa", "su"};
+
+    private final int[] mTransitions;
+
+    private WeeklyProfile(int[] transitions) {
+        mTransitions = transitions;
+    }
+
+    /**
+     * Create a profile from transitions
+     *
+     * @param minutes The transition times in minutes of the week, Monday 00:00 is 0
+     * @param night If the transition at the same index starts a night
+     * @return The profile
+     * @throws IllegalArgumentException If a time is out of range or the profile has only one state
+     */
+    public static WeeklyProfile create(int[] minutes, boolean[] night) {
+        int[] entries = new int[minutes.length];
+        for (int i = 0; i < minutes.length; ++i) {
+            if (minutes[i] < 0 || minutes[i] >= MINUTES_PER_WEEK) {
+                throw new IllegalArgumentException("Invalid minute of the week " + minutes[i]);
+            }
+            entries[i] = minutes[i] * 2 + (night[i] ? 1 : 0);
+        }
+        Arrays.sort(entries);
+
+        // Keep a single state per minute and drop transitions that do not change the state. The
+        // state before the first transition is the one of the last transition of the week.
+        int count = 0;
+        for (int i = 0; i < entries.length; ++i) {
+            if (i + 1 < entries.length && entries[i + 1] >> 1 == entries[i] >> 1) {
+                continue; // a conflicting transition at the same minute, night wins
+            }
+            int previous = count > 0 ? entries[count - 1] : entries[entries.length - 1];
+            if ((previous & 1) != (entries[i] & 1)) {
+                entries[count++] = entries[i];
+            }
+        }
+
+        if (count == 0) {
+            throw new IllegalArgumentException("The profile needs both day and night");
+        }
+
+        return new WeeklyProfile(Arrays.copyOf(entries, count));
+    }
+
+    /**
+     * Parse a profile in the text format
+     *
+     * @param text The text
+     * @return The profile
+     * @throws IllegalArgumentException If the text is not valid
+     */
+    public static WeeklyProfile parse(String text) {
+        int[] minutes = new int[16];
+        boolean[] night = new boolean[16];
+        int count = 0;
+
+        for (String entry : text.toLowerCase().split("[;\n]")) {
+            String[] tokens = entry.trim().split("\\s+");
+            if (tokens.length == 1 && tokens[0].length() == 0) {
+                continue;
+            }
+            if (tokens.length < 3 || tokens.length % 2 == 0) {
+                throw new IllegalArgumentException("Expected days followed by times and states: " + entry.trim());
+            }
+
+            boolean[] days = parseDays(tokens[0]);
+            for (int t = 1; t < tokens.length; t += 2) {
+                int minute = parseTime(tokens[t]);
+                boolean isNight;
+                if (tokens[t + 1].equals("night")) {
+                    isNight = true;
+                } else if (tokens[t + 1].equals("day")) {
+                    isNight = false;
+                } else {
+                    throw new IllegalArgumentException("Expected day or night: " + tokens[t + 1]);
+                }
+
+                for (int d = 0; d < 7; ++d) {
+                    if (days[d]) {
+                        if (count == minutes.length) {
+                            minutes = Arrays.copyOf(minutes, count * 2);
+                            night = Arrays.copyOf(night, count * 2);
+                        }
+                        minutes[count] = d * MINUTES_PER_DAY + minute;
+                        night[count] = isNight;
+                        ++count;
+                    }
+                }
+            }
+        }
+
+        return create(Arrays.copyOf(minutes, count), Arrays.copyOf(night, count));
+    }
+
+    private static boolean[] parseDays(String token) {
+        boolean[] result = new boolean[7];
+        for (String part : token.split(",")) {
+            String[] range = part.split("-");
+            if (range.length > 2) {
+                throw new IllegalArgumentException("Invalid days: " + token);
+            }
+            int first = parseDay(range[0]);
+            int last = range.length == 2 ? parseDay(range[1]) : first;
+            for (int d = first; ; d = (d + 1) % 7) {
+                result[d] = true;
+                if (d == last) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static int parseDay(String name) {
+        for (int d = 0; d < DAY_NAMES.length; ++d) {
+            if (DAY_NAMES[d].equals(name)) {
+                return d;
+            }
+        }
+        throw new IllegalArgumentException("Unknown day " + name + ", use mo, tu, we, th, fr, sa or su");
+    }
+
+    private static int parseTime(String token) {
+        String[] parts = token.split(":");
+        try {
+            if (parts.length == 2) {
+                int hour = Integer.parseInt(parts[0]);
+                int minute = Integer.parseInt(parts[1]);
+                if (hour >= 0 && hour < 24 && minute >= 0 && minute < 60) {
+                    return hour * 60 + minute;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid time " + token + ", use HH:MM");
+    }
+
+    /**
+     * Get the number of transitions per week
+     *
+     * @return The number of transitions
+     */
+    public int size() {
+        return mTransitions.length;
+    }
+
+    /**
+     * Get the next start of a day or night period at or after the given time
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @param night If the start of a night is requested
+     * @return The time of the transition in milliseconds since the epoch
+     */
+    public long getNext(long now, TimeZone tz, boolean night) {
+        long day = NightSchedule.localDay(now, tz);
+        long weekStart = day - weekday(day);
+        int minute = (int) ((now + tz.getOffset(now) - weekStart * NightSchedule.DAY_MILLIS) / NightSchedule.MINUTE_MILLIS);
+
+        int index = Arrays.binarySearch(mTransitions, minute * 2);
+        long k = index < 0 ? -index - 1 : index;
+        if (isNight(k) != night) {
+            ++k;
+        }
+
+        // the local minute might be rounded down or shifted by a change of the offset
+        while (true) {
+            long result = toMillis(k, weekStart, tz);
+            if (result >= now) {
+                return result;
+            }
+            k += 2;
+        }
+    }
+
+    /**
+     * Get the latest transition at or before the given time
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param tz The time zone
+     * @return The time of the transition in milliseconds since the epoch
+     */
+    public long getPrevious(long now, TimeZone tz) {
+        long day = NightSchedule.localDay(now, tz);
+        long weekStart = day - weekday(day);
+        int minute = (int) ((now + tz.getOffset(now) - weekStart * NightSchedule.DAY_MILLIS) / NightSchedule.MINUTE_MILLIS);
+
+        // the last entry at or before the minute, both states of that minute are included
+        int index = Arrays.binarySearch(mTransitions, minute * 2 + 1);
+        long k = (index < 0 ? -index - 1 : index + 1) - 1;
+
+        while (true) {
+            long result = toMillis(k, weekStart, tz);
+            if (result <= now) {
+                return result;
+            }
+            --k;
+        }
+    }
+
+    /**
+     * If the transition with the given running index starts a night
+     */
+    private boolean isNight(long k) {
+        return (mTransitions[(int) floorMod(k, mTransitions.length)] & 1) != 0;
+    }
+
+    /**
+     * Convert a running index of a transition to its time. Index 0 is the first transition of the
+     * week that starts at weekStart, indices outside of the array continue in other weeks.
+     */
+    private long toMillis(long k, long weekStart, TimeZone tz) {
+        int n = mTransitions.length;
+        int minute = mTransitions[(int) floorMod(k, n)] >> 1;
+        long day = weekStart + 7 * ((k - floorMod(k, n)) / n) + minute / MINUTES_PER_DAY;
+        return NightSchedule.toMillis(day, minute % MINUTES_PER_DAY, tz);
+    }
+
+    private static long floorMod(long x, long y) {
+        long result = x % y;
+        return result < 0 ? result + y : result;
+    }
+
+    /**
+     * Get the day of the week of a local day
+     *
+     * @param day The local day, i.e. days since the epoch
+     * @return The day of the week, 0 is Monday
+     */
+    static int weekday(long day) {
+        // the epoch was a Thursday
+        return (int) floorMod(day + 3, 7);
+    }
+}
@@ -0,0 +1,149 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AmbientLightFilterTest {
+    private static final TimeZone TZ = TimeZone.getTimeZone("Europe/Berlin");
+    private static final long SECOND = 1000L * 1000 * 1000;
+
+    /**
+     * An evening in the living room as recorded by the light sensor, one reading per second:
+     * the lamp is dimmed, the sensor is covered by a hand, the lights are turned off for the TV
+     * and a phone is briefly held close to the sensor. Each row is duration in seconds, lux and
+     * the noise in lux.
+     */
+    private static final double[][] EVENING = {
+            {600, 300, 20},
+            {300, 30, 3},
+            {2, 0, 0},
+            {300, 30, 3},
+            {900, 5, 3},
+            {3, 200, 20},
+            {600, 5, 3},
+    };
+
+    /**
+     * Replay a trace
+     *
+     * @param trace The trace
+     * @param batch The number of readings that are delivered at once, like from the sensor FIFO
+     * @param states Receives the state after every reading, may be null
+     * @return The number of state changes after the first known state
+     */
+    private static int replay(double[][] trace, int batch, int[] states) {
+        AmbientLightFilter filter = new AmbientLightFilter();
+        Random random = new Random(42);
+        long timestamp = 1000 * SECOND;
+        int count = 0;
+        int changes = 0;
+
+        long[] timestamps = new long[batch];
+        float[] values = new float[batch];
+        int pending = 0;
+
+        for (double[] row : trace) {
+            for (int i = 0; i < row[0]; ++i) {
+                timestamps[pending] = timestamp;
+                values[pending] = (float) Math.max(0, row[1] + random.nextGaussian() * row[2]);
+                ++pending;
+                timestamp += SECOND;
+
+                if (pending == batch) {
+                    for (int j = 0; j < pending; ++j) {
+                        int previous = filter.getState();
+                        if (filter.onSample(timestamps[j], values[j]) && previous != AmbientLightFilter.UNKNOWN) {
+                            ++changes;
+                        }
+                        if (states != null) {
+                            states[count] = filter.getState();
+                        }
+                        ++count;
+                    }
+                    pending = 0;
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    private static int length(double[][] trace) {
+        int length = 0;
+        for (double[] row : trace) {
+            length += (int) row[0];
+        }
+        return length;
+    }
+
+    @Test
+    public void testEvening() {
+        int[] states = new int[length(EVENING)];
+        // one change, when the lights are turned off for the TV
+        assertEquals(1, replay(EVENING, 1, states));
+        assertEquals(AmbientLightFilter.BRIGHT, states[0]);
+        assertEquals(AmbientLightFilter.BRIGHT, states[1200]);
+        assertEquals(AmbientLightFilter.DARK, states[1202 + 120]);
+        assertEquals(AmbientLightFilter.DARK, states[states.length - 1]);
+    }
+
+    @Test
+    public void testBatching() {
+        int length = length(EVENING);
+        int[] single = new int[length];
+        int[] batched = new int[length];
+        replay(EVENING, 1, single);
+        // the FIFO delivers a minute of readings at once
+        replay(EVENING, 60, batched);
+
+        for (int i = 0; i < length - length % 60; ++i) {
+            assertEquals(single[i], batched[i]);
+        }
+    }
+
+    @Test
+    public void testHysteresis() {
+        AmbientLightFilter filter = new AmbientLightFilter(10, 50, 0);
+        assertTrue(filter.onSample(SECOND, 5));
+        assertEquals(AmbientLightFilter.DARK, filter.getState());
+        assertFalse(filter.onSample(2 * SECOND, 30));
+        assertFalse(filter.onSample(3 * SECOND, 9));
+        assertTrue(filter.onSample(4 * SECOND, 51));
+        assertFalse(filter.onSample(5 * SECOND, 11));
+        // readings in the band do not decide the state after a reset
+        filter.reset();
+        assertFalse(filter.onSample(6 * SECOND, 30));
+        assertEquals(AmbientLightFilter.UNKNOWN, filter.getState());
+    }
+
+    @Test
+    public void testWindow() {
+        NightSchedule schedule = NightSchedule.fixed(8 * 60, 21 * 60);
+        Calendar calendar = Calendar.getInstance(TZ);
+        calendar.clear();
+        calendar.set(2027, 0, 15, 18, 30);
+        long evening = calendar.getTimeInMillis();
+
+        // more than two hours before the night the room does not matter
+        assertTrue(AmbientLightFilter.isDay(schedule, evening, TZ, AmbientLightFilter.DARK));
+        assertTrue(AmbientLightFilter.isDay(schedule, evening + 30 * 60 * 1000, TZ, AmbientLightFilter.BRIGHT));
+        assertFalse(AmbientLightFilter.isDay(schedule, evening + 30 * 60 * 1000, TZ, AmbientLightFilter.DARK));
+        assertTrue(AmbientLightFilter.isDay(schedule, evening + 30 * 60 * 1000, TZ, AmbientLightFilter.UNKNOWN));
+        // a bright room does not delay the night
+        assertFalse(AmbientLightFilter.isDay(schedule, evening + 3 * 60 * 60 * 1000, TZ, AmbientLightFilter.BRIGHT));
+
+        // a bright morning gets the day colors early
+        calendar.set(2027, 0, 16, 6, 30);
+        long morning = calendar.getTimeInMillis();
+        assertTrue(AmbientLightFilter.isDay(schedule, morning, TZ, AmbientLightFilter.BRIGHT));
+        assertFalse(AmbientLightFilter.isDay(schedule, morning, TZ, AmbientLightFilter.DARK));
+        assertFalse(AmbientLightFilter.isDay(schedule, morning - 60 * 60 * 1000, TZ, AmbientLightFilter.BRIGHT));
+    }
+}
@@ -0,0 +1,146 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays clock and time zone changes with a fake clock, the times are passed explicitly.
+ */
+public class ClockChangeTest {
+    private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    private static final long MINUTE = NightSchedule.MINUTE_MILLIS;
+    private static final long FADE = 30 * MINUTE;
+    private static final NightSchedule SCHEDULE = NightSchedule.fixed(8 * 60, 21 * 60);
+
+    private static long millis(TimeZone tz, int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(tz);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    /**
+     * The alarm that is armed at the given time, like TransitionScheduler.scheduleNext()
+     */
+    private static ClockChange arm(long now, TimeZone tz) {
+        return ClockChange.compute(SCHEDULE, now, tz, 0, false, FADE, AmbientLightFilter.UNKNOWN);
+    }
+
+    private static ClockChange change(ClockChange armed, long now, TimeZone tz) {
+        return ClockChange.compute(SCHEDULE, now, tz, armed.getNextTime(), armed.isNextToNight(), FADE,
+                AmbientLightFilter.UNKNOWN);
+    }
+
+    @Test
+    public void testTimeZoneChange() {
+        // 22:00 in Berlin is night, the alarm waits for 08:00 in Berlin
+        long now = millis(BERLIN, 2027, 6, 10, 22, 0);
+        ClockChange armed = arm(now, BERLIN);
+        assertTrue(armed.isToNight());
+
+        // the traveller arrives in New York at 16:00 local time
+        ClockChange change = change(armed, now, NEW_YORK);
+        assertTrue(change.isRearmNeeded());
+        assertFalse(change.isToNight());
+        assertEquals(0, change.getFadeDuration());
+        assertEquals(millis(NEW_YORK, 2027, 6, 10, 21, 0), change.getNextTime());
+        assertTrue(change.isNextToNight());
+    }
+
+    @Test
+    public void testClockSetBack() {
+        // armed at 21:40 for the morning, then the clock is corrected to 20:40
+        long before = millis(BERLIN, 2027, 1, 20, 21, 40);
+        ClockChange armed = arm(before, BERLIN);
+        ClockChange change = change(armed, before - 60 * MINUTE, BERLIN);
+        assertTrue(change.isRearmNeeded());
+        assertFalse(change.isToNight());
+        assertEquals(millis(BERLIN, 2027, 1, 20, 21, 0), change.getNextTime());
+    }
+
+    @Test
+    public void testWithinFade() {
+        long armedAt = millis(BERLIN, 2027, 1, 20, 20, 0);
+        ClockChange armed = arm(armedAt, BERLIN);
+
+        // the clock jumps to 21:10, the fade continues from its step at 21:10
+        ClockChange change = change(armed, millis(BERLIN, 2027, 1, 20, 21, 10), BERLIN);
+        assertTrue(change.isRearmNeeded());
+        assertTrue(change.isToNight());
+        assertEquals(millis(BERLIN, 2027, 1, 20, 21, 0), change.getFadeStart());
+        assertEquals(FADE, change.getFadeDuration());
+
+        // after the fade the colors are set directly
+        change = change(armed, millis(BERLIN, 2027, 1, 20, 21, 40), BERLIN);
+        assertEquals(0, change.getFadeDuration());
+    }
+
+    @Test
+    public void testDateChangeKeepsAlarm() {
+        // at midnight nothing changes, the armed alarm is kept
+        long now = millis(BERLIN, 2027, 1, 20, 22, 0);
+        ClockChange armed = arm(now, BERLIN);
+        ClockChange change = change(armed, millis(BERLIN, 2027, 1, 21, 0, 0), BERLIN);
+        assertFalse(change.isRearmNeeded());
+        assertTrue(change.isToNight());
+    }
+
+    @Test
+    public void testDstBoundaries() {
+        // every 10 minutes across the changes to summer and to winter time: a change event that
+        // does not change the clock never re-arms the alarm and always gives the schedule's colors
+        long[][] ranges = {
+                {millis(BERLIN, 2027, 3, 27, 12, 0), millis(BERLIN, 2027, 3, 29, 12, 0)},
+                {millis(BERLIN, 2027, 10, 30, 12, 0), millis(BERLIN, 2027, 11, 1, 12, 0)},
+        };
+
+        for (long[] range : ranges) {
+            ClockChange armed = arm(range[0], BERLIN);
+            for (long now = range[0]; now < range[1]; now += 10 * MINUTE) {
+                if (now >= armed.getNextTime()) {
+                    // the alarm fired, the next one is armed
+                    armed = arm(armed.getNextTime(), BERLIN);
+                }
+
+                ClockChange change = change(armed, now, BERLIN);
+                assertFalse(change.isRearmNeeded());
+                assertEquals(!SCHEDULE.isDay(now, BERLIN), change.isToNight());
+            }
+        }
+    }
+
+    @Test
+    public void testDstTransitionTimes() {
+        NightSchedule schedule = NightSchedule.fixed(2 * 60 + 30, 21 * 60);
+
+        // 02:30 does not exist on the day of the change to summer time, the day starts at 03:30
+        long now = millis(BERLIN, 2027, 3, 28, 0, 0);
+        ClockChange change = ClockChange.compute(schedule, now, BERLIN, 0, true, 0, AmbientLightFilter.UNKNOWN);
+        assertTrue(change.isRearmNeeded());
+        assertFalse(change.isNextToNight());
+        assertEquals(150 * MINUTE, change.getNextTime() - now);
+        assertEquals(millis(BERLIN, 2027, 3, 28, 3, 30), change.getNextTime());
+
+        // 02:30 exists twice on the day of the change to winter time, the first one is used
+        now = millis(BERLIN, 2027, 10, 30, 22, 0);
+        change = ClockChange.compute(schedule, now, BERLIN, 0, true, 0, AmbientLightFilter.UNKNOWN);
+        assertFalse(change.isNextToNight());
+        assertEquals(270 * MINUTE, change.getNextTime() - now);
+    }
+
+    @Test
+    public void testAdaptive() {
+        // a dark room within the window before the night, no fade from colors that are not set
+        long now = millis(BERLIN, 2027, 1, 20, 20, 0);
+        ClockChange change = ClockChange.compute(SCHEDULE, now, BERLIN, 0, false, FADE, AmbientLightFilter.DARK);
+        assertTrue(change.isToNight());
+        assertEquals(0, change.getFadeDuration());
+    }
+}
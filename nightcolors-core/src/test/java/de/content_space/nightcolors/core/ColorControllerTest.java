@@ -0,0 +1,98 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColorControllerTest implements ColorController.Host {
+    private static final long NOW = 1798758000000L;
+    private static final long FADE = 30 * NightSchedule.MINUTE_MILLIS;
+
+    private File mDir;
+    private FakeColorBackend mBackend;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Simulation.createTempDir();
+        mBackend = new FakeColorBackend(new File(mDir, "panel"));
+    }
+
+    @After
+    public void tearDown() {
+        Simulation.deleteRecursively(mDir);
+    }
+
+    private ColorController createController() {
+        ColorController controller = new ColorController(this, mBackend, PendingState.getFile(mDir));
+        controller.setAppliedFile(ColorController.getAppliedFile(mDir));
+        return controller;
+    }
+
+    @Test
+    public void testFadeFromDay() {
+        ColorController controller = createController();
+        assertTrue(controller.onTarget(PendingState.forTarget(false, 0, 0)));
+        assertEquals(ColorController.APPLIED_DAY, controller.getApplied());
+
+        // the fade starts with the day colors
+        assertTrue(controller.onTarget(PendingState.forTarget(true, NOW, FADE)));
+        assertEquals(ColorController.DAY_MULTIPLIER, mBackend.getGreen());
+        assertEquals(ColorController.APPLIED_FADE, controller.getApplied());
+    }
+
+    @Test
+    public void testEarlyNight() {
+        // the light of the room has set the night colors before the transition
+        assertTrue(createController().onTarget(PendingState.forTarget(true, 0, 0)));
+
+        // the process has been restarted in the meantime, the transition does not fade from the day
+        ColorController controller = createController();
+        assertEquals(ColorController.APPLIED_NIGHT, controller.getApplied());
+        assertTrue(controller.onTarget(PendingState.forTarget(true, NOW, FADE)));
+        assertEquals(ColorController.NIGHT_MULTIPLIER, mBackend.getGreen());
+        assertEquals(ColorController.APPLIED_NIGHT, controller.getApplied());
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return NOW;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return 0;
+    }
+
+    @Override
+    public boolean isScreenOn() {
+        return true;
+    }
+
+    @Override
+    public void setWaitingForScreenOn(boolean waiting) {
+    }
+
+    @Override
+    public void scheduleFadeStep(long time, long window, PendingState state) {
+    }
+
+    @Override
+    public PendingState getCurrentTarget(long now) {
+        return PendingState.forTarget(false, 0, 0);
+    }
+
+    @Override
+    public void onColorsSet(String name, boolean written) {
+    }
+
+    @Override
+    public void onError(String message, IOException e) {
+        throw new AssertionError(message, e);
+    }
+}
@@ -0,0 +1,120 @@
+package de.content_space.nightcolors.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-channel curves of the kcal interface: generating the values of all steps of a
+ * fade, and applying a single step compared to the three files of samoled_color.
+ *
+ * The files are in a temporary directory instead of sysfs, so the apply benchmarks measure the
+ * work in the app and the file system calls, not the cost of the driver on a device.
+ *
+ * Run the main method with the test classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ColorCurveBenchmark {
+    private static final long FADE = 30 * NightSchedule.MINUTE_MILLIS;
+
+    private File mRoot;
+    private File mKcal;
+    private PendingState mNight;
+    private RgbColorBackend mCurves;
+    private ColorBackend mKcalBackend;
+    private ColorBackend mSamoledBackend;
+    private ColorTransition mTransition;
+    private int mStep = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        mRoot = Simulation.createTempDir();
+        File kcalDir = new File(mRoot, "sys/devices/platform/kcal_ctrl.0");
+        if (!kcalDir.mkdirs()) {
+            throw new IOException("Cannot create " + kcalDir);
+        }
+        mKcal = new File(kcalDir, "kcal");
+        SysfsColorBackend.writeString(mKcal, "250 240 256");
+        SysfsColorBackend.writeString(new File(kcalDir, "kcal_min"), "35");
+        mKcalBackend = DeviceProfile.probe(mRoot).createBackend();
+        mCurves = new RgbColorBackend(mKcal, null, new int[]{35, 35, 35}, new int[]{250, 240, 256}, null);
+
+        File panel = new File(mRoot, "samoled_color");
+        new FakeColorBackend(panel);
+        mSamoledBackend = new SysfsColorBackend(panel);
+
+        mNight = PendingState.forTarget(true, 0, 0);
+        mTransition = ColorTransition.get(mNight.getNightRed(), mNight.getNightGreen(), mNight.getNightBlue(), FADE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Simulation.deleteRecursively(mRoot);
+    }
+
+    /**
+     * Compute the table of a fade and the kcal values of all its steps
+     */
+    @Benchmark
+    public int generateFade() {
+        ColorTransition transition = new ColorTransition(ColorController.DAY_MULTIPLIER,
+                ColorController.DAY_MULTIPLIER, ColorController.DAY_MULTIPLIER, mNight.getNightRed(),
+                mNight.getNightGreen(), mNight.getNightBlue(), FADE);
+        int length = 0;
+        for (int step = 0; step <= transition.getStepCount(); ++step) {
+            length += mCurves.format(transition.getRed(step, true), transition.getGreen(step, true),
+                    transition.getBlue(step, true)).length();
+        }
+        return length;
+    }
+
+    /**
+     * A fade step on kcal, all channels in a single write
+     */
+    @Benchmark
+    public boolean applyStepKcal() throws IOException {
+        return apply(mKcalBackend);
+    }
+
+    /**
+     * The same step on samoled_color, one write per channel
+     */
+    @Benchmark
+    public boolean applyStepSamoled() throws IOException {
+        return apply(mSamoledBackend);
+    }
+
+    private boolean apply(ColorBackend backend) throws IOException {
+        // the steps go back and forth so every call writes
+        mStep = (mStep + 1) % (2 * mTransition.getStepCount());
+        int step = Math.min(mStep, 2 * mTransition.getStepCount() - mStep);
+        return backend.setMultipliers(mTransition.getRed(step, true), mTransition.getGreen(step, true),
+                mTransition.getBlue(step, true));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ColorCurveBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
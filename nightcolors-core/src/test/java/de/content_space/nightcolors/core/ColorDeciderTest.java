@@ -0,0 +1,116 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ColorDeciderTest implements ColorDecider.Environment {
+    private static final long MINUTE = NightSchedule.MINUTE_MILLIS;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private final NightSchedule mSchedule = NightSchedule.fixed(8 * 60, 20 * 60);
+    private long mNow;
+    private long mSnoozeUntil;
+    private ColorDecider mDecider;
+
+    @Before
+    public void setUp() {
+        // 1970-01-02 20:00 UTC, the night has just begun
+        mNow = NightSchedule.DAY_MILLIS + 20 * 60 * MINUTE;
+        mSnoozeUntil = 0;
+        mDecider = new ColorDecider(this, new TransitionOrder());
+    }
+
+    @Test
+    public void testSnooze() {
+        assertFalse(mDecider.onSnooze(30).isToNight());
+        assertEquals(mNow + 30 * MINUTE, mSnoozeUntil);
+        assertFalse(mDecider.onTransition(1, new Transition(mNow, true)).isToNight());
+
+        mNow += 30 * MINUTE;
+        assertTrue(mDecider.onResume().isToNight());
+        assertEquals(0, mSnoozeUntil);
+    }
+
+    @Test
+    public void testManualEndsSnooze() {
+        mDecider.onSnooze(30);
+        assertTrue(mDecider.onManual(true).isToNight());
+        assertEquals(0, mSnoozeUntil);
+    }
+
+    @Test
+    public void testManualDropsOlderFadeSteps() {
+        long start = mNow;
+        assertTrue(mDecider.onTransition(1, new Transition(start, true)).isToNight());
+        mNow += MINUTE;
+        assertFalse(mDecider.onManual(false).isToNight());
+        assertNull(mDecider.onFadeStep(start, 30 * MINUTE, true));
+        // the next transition is applied again
+        assertTrue(mDecider.onTransition(2, new Transition(start + NightSchedule.DAY_MILLIS, true)).isToNight());
+    }
+
+    @Test
+    public void testDuplicateTransition() {
+        Transition transition = new Transition(mNow, true);
+        assertTrue(mDecider.onTransition(1, transition) != null);
+        assertNull(mDecider.onTransition(1, transition));
+    }
+
+    @Test
+    public void testLateAlarm() {
+        // the alarm for the morning is delivered after the following evening has begun
+        Transition morning = new Transition(mNow - 12 * 60 * MINUTE, false);
+        Transition transition = morning.latest(mSchedule, mNow + MINUTE, UTC);
+        assertEquals(mNow, transition.getTime());
+        assertTrue(transition.isToNight());
+        Transition next = Transition.next(mSchedule, transition.getFollowingAfter(mNow + MINUTE), UTC);
+        assertEquals(mNow + 12 * 60 * MINUTE, next.getTime());
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public TimeZone getTimeZone() {
+        return UTC;
+    }
+
+    @Override
+    public NightSchedule getSchedule(long now) {
+        return mSchedule;
+    }
+
+    @Override
+    public int getLightState() {
+        return AmbientLightFilter.UNKNOWN;
+    }
+
+    @Override
+    public long getFadeDuration() {
+        return 0;
+    }
+
+    @Override
+    public PendingState getTarget(boolean toNight, long fadeStart, long fadeDuration) {
+        return PendingState.forTarget(toNight, fadeStart, fadeDuration);
+    }
+
+    @Override
+    public long getSnoozeUntil() {
+        return mSnoozeUntil;
+    }
+
+    @Override
+    public void setSnoozeUntil(long until) {
+        mSnoozeUntil = until;
+    }
+}
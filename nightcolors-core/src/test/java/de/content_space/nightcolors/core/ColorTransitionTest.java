@@ -0,0 +1,63 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ColorTransitionTest {
+    private static final int DAY = ColorController.DAY_MULTIPLIER;
+    private static final int NIGHT = ColorController.NIGHT_MULTIPLIER;
+    private static final long MINUTE = NightSchedule.MINUTE_MILLIS;
+
+    @Test
+    public void testStepRatio() {
+        ColorTransition transition = new ColorTransition(DAY, DAY, DAY, DAY, NIGHT, NIGHT / 4, 60 * MINUTE);
+        int steps = transition.getStepCount();
+        assertTrue(steps > 1);
+
+        for (int i = 1; i <= steps; ++i) {
+            // blue changes most, rounding may add a tiny bit to the ratio
+            double ratio = (double) transition.getBlue(i - 1, true) / transition.getBlue(i, true);
+            assertTrue("step " + i + " changes by " + ratio, ratio <= ColorTransition.MAX_STEP_RATIO + 1e-6);
+            assertTrue(transition.getGreen(i - 1, true) >= transition.getGreen(i, true));
+            assertEquals(DAY, transition.getRed(i, true));
+        }
+
+        // one step fewer would exceed the ratio
+        double total = Math.log((double) DAY / (NIGHT / 4));
+        assertTrue(total / (steps - 1) > Math.log(ColorTransition.MAX_STEP_RATIO));
+    }
+
+    @Test
+    public void testMinimumInterval() {
+        ColorTransition transition = new ColorTransition(DAY, DAY, DAY, DAY, NIGHT, NIGHT, 5 * MINUTE);
+        assertEquals(5, transition.getStepCount());
+        assertEquals(ColorTransition.MIN_STEP_INTERVAL, transition.getStepInterval());
+
+        // a fade shorter than the minimum interval is a single step
+        transition = new ColorTransition(DAY, DAY, DAY, DAY, NIGHT, NIGHT, 30 * 1000);
+        assertEquals(1, transition.getStepCount());
+        assertEquals(30 * 1000, transition.getStepInterval());
+    }
+
+    @Test
+    public void testEndState() {
+        ColorTransition transition = new ColorTransition(DAY, DAY, DAY, DAY - 7, NIGHT + 3, NIGHT / 3, 30 * MINUTE);
+        int steps = transition.getStepCount();
+
+        // the ends are exact despite the rounding of the interpolation
+        assertEquals(DAY, transition.getGreen(0, true));
+        assertEquals(DAY - 7, transition.getRed(steps, true));
+        assertEquals(NIGHT + 3, transition.getGreen(steps, true));
+        assertEquals(NIGHT / 3, transition.getBlue(steps, true));
+        assertEquals(NIGHT / 3, transition.getBlue(0, false));
+        assertEquals(DAY, transition.getBlue(steps, false));
+
+        assertEquals(0, transition.getStep(-MINUTE));
+        assertEquals(0, transition.getStep(transition.getStepInterval() - 1));
+        assertEquals(1, transition.getStep(transition.getStepOffset(1)));
+        assertEquals(steps, transition.getStep(30 * MINUTE));
+        assertEquals(steps, transition.getStep(60 * MINUTE));
+    }
+}
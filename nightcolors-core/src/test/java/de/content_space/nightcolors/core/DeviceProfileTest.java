@@ -0,0 +1,86 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceProfileTest {
+    private File mRoot;
+    private File mKcal;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = Simulation.createTempDir();
+        File dir = new File(mRoot, "sys/devices/platform/kcal_ctrl.0");
+        assertTrue(dir.mkdirs());
+        mKcal = new File(dir, "kcal");
+        SysfsColorBackend.writeString(new File(dir, "kcal_min"), "35");
+    }
+
+    @After
+    public void tearDown() {
+        Simulation.deleteRecursively(mRoot);
+    }
+
+    @Test
+    public void testKcalCalibration() throws IOException {
+        // the kernel has restored the calibration of the panel at boot
+        SysfsColorBackend.writeString(mKcal, "250 240 256");
+        File file = new File(mRoot, "profile");
+        DeviceProfile.probe(mRoot).save(file);
+
+        DeviceProfile profile = DeviceProfile.load(file);
+        assertArrayEquals(new int[]{250, 240, 256}, profile.getSelected().getCalibrated());
+
+        // a new process finds the night colors with a reduced red set, the day restores the calibration
+        SysfsColorBackend.writeString(mKcal, "200 35 35");
+        ColorBackend backend = profile.createBackend();
+        assertTrue(backend.setMultipliers(ColorController.DAY_MULTIPLIER, ColorController.DAY_MULTIPLIER,
+                ColorController.DAY_MULTIPLIER));
+        assertEquals("250 240 256", SysfsColorBackend.readString(mKcal));
+    }
+
+    @Test
+    public void testChannelCurves() throws IOException {
+        SysfsColorBackend.writeString(mKcal, "250 200 256");
+        ColorBackend backend = DeviceProfile.probe(mRoot).createBackend();
+
+        // every channel is scaled from its own calibration and kept above kcal_min
+        int half = ColorController.DAY_MULTIPLIER / 2;
+        assertTrue(backend.setMultipliers(ColorController.DAY_MULTIPLIER, half, ColorController.NIGHT_MULTIPLIER));
+        assertEquals("250 100 35", SysfsColorBackend.readString(mKcal));
+    }
+
+    @Test
+    public void testRedOnlyProfile() throws IOException {
+        // a profile of the previous version is used until the next boot probes the interfaces again
+        File file = new File(mRoot, "profile");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeByte(4);
+        out.writeByte(1);
+        out.writeByte(DeviceProfile.TYPE_KCAL);
+        out.writeUTF(mKcal.getPath());
+        out.writeByte(3);
+        out.writeInt(35);
+        out.writeInt(256);
+        out.writeInt(250);
+        out.close();
+
+        assertArrayEquals(new int[]{250, 256, 256}, DeviceProfile.load(file).getSelected().getCalibrated());
+    }
+
+    @Test
+    public void testInvalidCalibration() throws IOException {
+        SysfsColorBackend.writeString(mKcal, "garbage 100");
+        assertArrayEquals(new int[]{256, 100, 256}, DeviceProfile.probe(mRoot).getSelected().getCalibrated());
+    }
+}
@@ -0,0 +1,85 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventJournalTest {
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("journal", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    private String[] decode(int limit) throws IOException {
+        StringWriter out = new StringWriter();
+        EventJournal.decode(mFile, new PrintWriter(out), limit);
+        String text = out.toString();
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        EventJournal journal = EventJournal.open(mFile, 16);
+        journal.append(EventJournal.SERVICE_START, EventJournal.FLAG_REDELIVERY, 7);
+        journal.append(EventJournal.COLOR, EventJournal.CHANNEL_GREEN, ColorController.NIGHT_MULTIPLIER);
+
+        // a new process finds the records of the old one
+        journal = EventJournal.open(mFile, 16);
+        assertEquals(2, journal.getCount());
+        journal.append(EventJournal.ERROR, EventJournal.ERROR_WRITE, 0);
+
+        String[] lines = decode(Integer.MAX_VALUE);
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("service start id=7 redelivered"));
+        assertTrue(lines[1], lines[1].endsWith("color green=" + ColorController.NIGHT_MULTIPLIER));
+        assertTrue(lines[2], lines[2].endsWith("error writing the colors"));
+    }
+
+    @Test
+    public void testRing() throws IOException {
+        EventJournal journal = EventJournal.open(mFile, 16);
+        for (int i = 0; i < 40; ++i) {
+            journal.append(EventJournal.ALARM, i % 2, i);
+        }
+        assertEquals(16 + 16 * 16, mFile.length());
+
+        String[] lines = decode(Integer.MAX_VALUE);
+        assertEquals(16, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("alarm day drift=24ms"));
+        assertTrue(lines[15], lines[15].endsWith("alarm night drift=39ms"));
+
+        lines = decode(3);
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].endsWith("drift=37ms"));
+    }
+
+    @Test
+    public void testCapacityChange() throws IOException {
+        EventJournal.open(mFile, 16).append(EventJournal.BOOT, 0, 0);
+        // a journal of a different size is started from scratch
+        assertEquals(0, EventJournal.open(mFile, 32).getCount());
+        assertEquals(0, decode(Integer.MAX_VALUE).length);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoJournal() throws IOException {
+        SysfsColorBackend.writeString(mFile, "not a journal");
+        decode(Integer.MAX_VALUE);
+    }
+}
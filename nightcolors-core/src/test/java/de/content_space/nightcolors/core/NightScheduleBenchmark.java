@@ -0,0 +1,298 @@
+package de.content_space.nightcolors.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.DateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the schedule lookups of NightSchedule with the previous Calendar based
+ * implementation of NightTimeHelper, and the step of a fade with the previous installAlarms().
+ *
+ * Both installAlarmsBefore() and fadeStep() write to a temporary directory instead of sysfs and
+ * leave out the calls into the system: the previous installAlarms() also registered two alarms
+ * and started the service, a fade step registers a single alarm for the next step. They only
+ * compare the work in the app, which is in the same range for both, not the cost of a step on a
+ * device. A fade step must not become clearly slower than installAlarmsBefore().
+ *
+ * Run the main method with the test classpath, add -prof gc to the options to see allocations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NightScheduleBenchmark {
+    private static final int START = 480;
+    private static final int END = 1200;
+
+    private NightSchedule mSchedule;
+    private TimeZone mTimeZone;
+    private long mNow;
+
+    /**
+     * The Calendar based implementation that NightTimeHelper used before, without the preference
+     * access.
+     */
+    static class CalendarHelper {
+        private final Calendar mBeginNextDay;
+        private final Calendar mBeginNextNight;
+
+        CalendarHelper(int start, int end) {
+            mBeginNextDay = prefToNextCalendar(start);
+            mBeginNextNight = prefToNextCalendar(end);
+        }
+
+        private Calendar prefToNextCalendar(int pref) {
+            Calendar result = Calendar.getInstance();
+            result.set(Calendar.SECOND, 0);
+            result.set(Calendar.MILLISECOND, 0);
+            result.set(Calendar.HOUR_OF_DAY, pref / 60);
+            result.set(Calendar.MINUTE, pref % 60);
+
+            if (Calendar.getInstance().after(result)) {
+                result.add(Calendar.DATE, 1);
+            }
+
+            return result;
+        }
+
+        boolean isDay() {
+            return mBeginNextDay.after(mBeginNextNight);
+        }
+
+        long getBeginOfNextNight() {
+            return mBeginNextNight.getTimeInMillis();
+        }
+    }
+
+    /**
+     * The files the previous service wrote the colors to
+     */
+    @State(Scope.Thread)
+    public static class InstallState {
+        File mDir;
+        File mGreen;
+        File mBlue;
+        boolean mNight = false;
+
+        @Setup
+        public void setUp() throws IOException {
+            mDir = Simulation.createTempDir();
+            mGreen = new File(mDir, "green_multiplier");
+            mBlue = new File(mDir, "blue_multiplier");
+        }
+
+        @TearDown
+        public void tearDown() {
+            Simulation.deleteRecursively(mDir);
+        }
+    }
+
+    /**
+     * A ColorController that runs through fades in both directions, one step per call
+     */
+    @State(Scope.Thread)
+    public static class FadeState implements ColorController.Host, ColorDecider.Environment {
+        private static final long FADE = 30 * NightSchedule.MINUTE_MILLIS;
+
+        File mDir;
+        ColorController mController;
+        ColorDecider mDecider;
+        long mStepInterval;
+        long mNow;
+        long mFadeStart;
+        boolean mToNight = true;
+
+        @Setup
+        public void setUp() throws IOException {
+            mDir = Simulation.createTempDir();
+            // the fake backend creates the files, the plain one writes them without reading them first
+            File panel = new File(mDir, "samoled_color");
+            new FakeColorBackend(panel);
+            mController = new ColorController(this, new SysfsColorBackend(panel), PendingState.getFile(mDir));
+            mController.setAppliedFile(ColorController.getAppliedFile(mDir));
+            mDecider = new ColorDecider(this, new TransitionOrder());
+            PendingState night = PendingState.forTarget(true, 0, 0);
+            mStepInterval = ColorTransition.get(night.getNightRed(), night.getNightGreen(), night.getNightBlue(),
+                    FADE).getStepInterval();
+            mNow = System.currentTimeMillis();
+            mFadeStart = mNow;
+        }
+
+        @TearDown
+        public void tearDown() {
+            Simulation.deleteRecursively(mDir);
+        }
+
+        /**
+         * Advance to the next step, after the end of a fade the fade back starts
+         */
+        long nextStep() {
+            mNow += mStepInterval;
+            if (mNow > mFadeStart + FADE) {
+                mFadeStart = mNow;
+                mToNight = !mToNight;
+            }
+            return mNow;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return mNow;
+        }
+
+        @Override
+        public boolean isScreenOn() {
+            return true;
+        }
+
+        @Override
+        public void setWaitingForScreenOn(boolean waiting) {
+        }
+
+        @Override
+        public void scheduleFadeStep(long time, long window, PendingState state) {
+        }
+
+        @Override
+        public PendingState getCurrentTarget(long now) {
+            return PendingState.forTarget(mToNight, 0, 0);
+        }
+
+        @Override
+        public void onColorsSet(String name, boolean written) {
+        }
+
+        @Override
+        public void onError(String message, IOException e) {
+            throw new IllegalStateException(message, e);
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+
+        @Override
+        public NightSchedule getSchedule(long now) {
+            return NightSchedule.fixed(START, END);
+        }
+
+        @Override
+        public int getLightState() {
+            return AmbientLightFilter.UNKNOWN;
+        }
+
+        @Override
+        public long getFadeDuration() {
+            return FADE;
+        }
+
+        @Override
+        public PendingState getTarget(boolean toNight, long fadeStart, long fadeDuration) {
+            return PendingState.forTarget(toNight, fadeStart, fadeDuration);
+        }
+
+        @Override
+        public long getSnoozeUntil() {
+            return 0;
+        }
+
+        @Override
+        public void setSnoozeUntil(long until) {
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mSchedule = NightSchedule.fixed(START, END);
+        mTimeZone = TimeZone.getDefault();
+        mNow = System.currentTimeMillis();
+    }
+
+    @Benchmark
+    public boolean calendarIsDay() {
+        return new CalendarHelper(START, END).isDay();
+    }
+
+    @Benchmark
+    public long calendarNextNight() {
+        return new CalendarHelper(START, END).getBeginOfNextNight();
+    }
+
+    @Benchmark
+    public boolean scheduleIsDay() {
+        return mSchedule.isDay(mNow, mTimeZone);
+    }
+
+    @Benchmark
+    public long scheduleNextNight() {
+        return mSchedule.getBeginOfNextNight(mNow, mTimeZone);
+    }
+
+    /**
+     * The work of the previous installAlarms() and of the command it sent to the service: the
+     * schedule, the two logged alarm times and writing green and blue
+     */
+    @Benchmark
+    public boolean installAlarmsBefore(InstallState state) throws FileNotFoundException {
+        CalendarHelper helper = new CalendarHelper(START, END);
+        boolean day = helper.isDay();
+        DateFormat dateFormat = DateFormat.getDateTimeInstance();
+        String night = dateFormat.format(helper.mBeginNextNight.getTime());
+        String begin = dateFormat.format(helper.mBeginNextDay.getTime());
+
+        // the previous service wrote the values without checking them
+        state.mNight = !state.mNight;
+        int value = state.mNight ? ColorController.NIGHT_MULTIPLIER : ColorController.DAY_MULTIPLIER;
+        PrintWriter greenWriter = new PrintWriter(state.mGreen);
+        greenWriter.print(value);
+        greenWriter.close();
+        PrintWriter blueWriter = new PrintWriter(state.mBlue);
+        blueWriter.print(value);
+        blueWriter.close();
+        return day ^ night.equals(begin);
+    }
+
+    /**
+     * A fade step alarm as the service handles it: the order check and applying the step
+     */
+    @Benchmark
+    public boolean fadeStep(FadeState state) {
+        state.nextStep();
+        PendingState target = state.mDecider.onFadeStep(state.mFadeStart, FadeState.FADE, state.mToNight);
+        return state.mController.onTarget(target);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(NightScheduleBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,131 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the root shell backends against /bin/sh and a temporary directory in place of sysfs.
+ */
+public class RootShellTest {
+    private File mDir;
+    private RootShell mShell;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("sysfs", "");
+        assertTrue(mDir.delete() && mDir.mkdir());
+        mShell = new RootShell("/bin/sh");
+    }
+
+    @After
+    public void tearDown() {
+        mShell.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testSysfsBatch() throws IOException {
+        SysfsColorBackend backend = new SysfsColorBackend(mDir, true, mShell);
+
+        assertTrue(backend.setMultipliers(ColorController.DAY_MULTIPLIER, ColorController.NIGHT_MULTIPLIER,
+                ColorController.NIGHT_MULTIPLIER));
+        // all three channels in a single round-trip
+        assertEquals(1, mShell.getRoundTripCount());
+        assertEquals(Integer.toString(ColorController.NIGHT_MULTIPLIER),
+                SysfsColorBackend.readString(new File(mDir, SysfsColorBackend.BLUE_FILE)));
+
+        // nothing changed, nothing written
+        assertFalse(backend.setMultipliers(ColorController.DAY_MULTIPLIER, ColorController.NIGHT_MULTIPLIER,
+                ColorController.NIGHT_MULTIPLIER));
+        assertEquals(1, mShell.getRoundTripCount());
+
+        assertTrue(backend.setMultipliers(ColorController.DAY_MULTIPLIER, ColorController.DAY_MULTIPLIER,
+                ColorController.DAY_MULTIPLIER));
+        assertEquals(2, mShell.getRoundTripCount());
+        assertEquals(Integer.toString(ColorController.DAY_MULTIPLIER),
+                SysfsColorBackend.readString(new File(mDir, SysfsColorBackend.GREEN_FILE)));
+    }
+
+    @Test
+    public void testRgbEnable() throws IOException {
+        File file = new File(mDir, "kcal");
+        File enable = new File(mDir, "kcal_enable");
+        SysfsColorBackend.writeString(file, "250 256 256");
+        SysfsColorBackend.writeString(enable, "0");
+        RgbColorBackend backend = new RgbColorBackend(file, enable, 35, 256, 250, mShell);
+
+        assertTrue(backend.setMultipliers(ColorController.DAY_MULTIPLIER, ColorController.NIGHT_MULTIPLIER,
+                ColorController.NIGHT_MULTIPLIER));
+        assertEquals(1, mShell.getRoundTripCount());
+        assertEquals("1", SysfsColorBackend.readString(enable));
+        // the calibrated red is kept
+        assertEquals("250 35 35", SysfsColorBackend.readString(file));
+    }
+
+    @Test
+    public void testVerify() throws IOException {
+        File missing = new File(new File(mDir, "missing"), "green_multiplier");
+        try {
+            mShell.write(new File[]{missing}, new String[]{"42"}, 1);
+            fail("The write to a missing directory was not detected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("42"));
+        }
+
+        // the session is still usable
+        File file = new File(mDir, "blue_multiplier");
+        mShell.write(new File[]{file}, new String[]{"it's"}, 1);
+        assertEquals("it's", SysfsColorBackend.readString(file));
+        assertEquals(2, mShell.getRoundTripCount());
+    }
+
+    @Test
+    public void testRestart() throws IOException {
+        File file = new File(mDir, "green_multiplier");
+        // the value is quoted, the shell keeps running
+        mShell.write(new File[]{file}, new String[]{"1; exit"}, 1);
+        assertEquals("1; exit", SysfsColorBackend.readString(file));
+        mShell.write(new File[]{file}, new String[]{"2"}, 1);
+
+        // a closed session is started again
+        mShell.close();
+        mShell.write(new File[]{file}, new String[]{"3"}, 1);
+        assertEquals("3", SysfsColorBackend.readString(file));
+        assertEquals(3, mShell.getRoundTripCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testShellExits() {
+        // the end of the output is reported right away instead of waiting for the start timeout
+        RootShell shell = new RootShell("/bin/sh", "-c", "echo denied");
+        try {
+            shell.write(new File[]{new File(mDir, "red_multiplier")}, new String[]{"1"}, 1);
+            fail("A shell that exited was not detected");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            shell.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoShell() throws IOException {
+        new RootShell(new File(mDir, "su").getPath()).write(new File[]{new File(mDir, "red_multiplier")},
+                new String[]{"1"}, 1);
+    }
+}
@@ -0,0 +1,604 @@
+package de.content_space.nightcolors.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Replays clock time, screen on and off events, manual switches, snoozes, reboots and service
+ * restarts against the ColorController with a fake clock and a FakeColorBackend.
+ *
+ * The simulated platform mirrors the app: a single chained RTC transition alarm, one pending fade
+ * step alarm, the alarm that ends a snooze, RTC alarms that are only delivered while the device
+ * is awake (i.e. the screen is on), a service that is stopped when it has nothing left to do and
+ * that gets its last command redelivered after it was killed. The alarms are armed and corrected
+ * with Transition and every command is decided by the ColorDecider, like in the app.
+ */
+public class Simulation implements ColorController.Host, ColorDecider.Environment {
+    static final long MINUTE = NightSchedule.MINUTE_MILLIS;
+    static final long HOUR = 60 * MINUTE;
+    static final long DAY = NightSchedule.DAY_MILLIS;
+    private static final long NEVER = Long.MAX_VALUE;
+    private static final int SNOOZE_MINUTES = 30;
+
+    private static final int COMMAND_SWITCH = 1;
+    private static final int COMMAND_TRANSITION = 2;
+    private static final int COMMAND_FADE_STEP = 3;
+    private static final int COMMAND_MANUAL = 4;
+    private static final int COMMAND_SNOOZE = 5;
+    private static final int COMMAND_RESUME = 6;
+    private static final int COMMAND_SCREEN_ON = 7;
+
+    /**
+     * An intent sent to the service
+     */
+    private static final class Command {
+        final int mType;
+        final boolean mToNight;
+        final long mSequence;
+        final Transition mTransition;
+        final PendingState mFadeState;
+
+        Command(int type, boolean toNight, long sequence, Transition transition, PendingState fadeState) {
+            mType = type;
+            mToNight = toNight;
+            mSequence = sequence;
+            mTransition = transition;
+            mFadeState = fadeState;
+        }
+    }
+
+    /**
+     * The results of a simulation run
+     */
+    public static class Report {
+        public int days;
+        /** Transition alarms that were delivered */
+        public int transitionAlarms;
+        /** Fade step alarms that were delivered */
+        public int fadeAlarms;
+        /** Alarms that were due while the screen was off and delivered when it was turned on */
+        public int deferredAlarms;
+        /** Screen on events delivered to a waiting service */
+        public int screenOnEvents;
+        /** Alarms that ended a snooze */
+        public int resumeAlarms;
+        public int manualSwitches;
+        public int snoozes;
+        /** Transitions and fade steps that the TransitionOrder dropped */
+        public int droppedCommands;
+        public int serviceStarts;
+        public int reboots;
+        public int serviceKills;
+        /** Color applications in which the colors were already set */
+        public int skippedApplies;
+        /** File writes in which the file already contained the value */
+        public int redundantWrites;
+        public int writes;
+        public int errors;
+        /** Time in which the screen was on but showed wrong colors (fades are not checked) */
+        public long wrongColorsMillis;
+        /** The wall clock time of the controller calls */
+        public final NightColorsStats.Histogram applyNanos = new NightColorsStats.Histogram("Apply", "ns");
+        /** The wall clock time the simulation took */
+        public long runtimeMillis;
+
+        /**
+         * Get the number of times the app was woken up by an alarm or a screen on event
+         *
+         * @return The number of wakeups
+         */
+        public int getWakeups() {
+            return transitionAlarms + fadeAlarms + resumeAlarms + screenOnEvents;
+        }
+
+        public void print(PrintWriter writer) {
+            writer.println("Simulated days:        " + days);
+            writer.println("Wakeups:               " + getWakeups() + " (" + transitionAlarms + " transition alarms, "
+                    + fadeAlarms + " fade step alarms, " + resumeAlarms + " resume alarms, "
+                    + screenOnEvents + " screen on events)");
+            writer.println("Manual / snoozes:      " + manualSwitches + " / " + snoozes);
+            writer.println("Dropped commands:      " + droppedCommands);
+            writer.println("Deferred alarms:       " + deferredAlarms);
+            writer.println("Service starts:        " + serviceStarts);
+            writer.println("Reboots / svc kills:   " + reboots + " / " + serviceKills);
+            writer.println("Writes:                " + writes + " (" + redundantWrites + " redundant)");
+            writer.println("Skipped applies:       " + skippedApplies);
+            writer.println("Errors:                " + errors);
+            writer.println("Wrong colors visible:  " + wrongColorsMillis / 1000 + " s");
+            writer.println("Runtime:               " + runtimeMillis + " ms");
+            applyNanos.dump(writer);
+            writer.flush();
+        }
+    }
+
+    private final NightSchedule mSchedule;
+    private final TimeZone mTimeZone;
+    private final long mFadeDuration;
+    private final Random mRandom;
+    private final File mPanelDir;
+    private final File mStateFile;
+    private final Report mReport = new Report();
+
+    private long mNow;
+    private boolean mScreenOn = true;
+    private FakeColorBackend mBackend = null;
+    private ColorController mService = null;
+    private boolean mWaiting = false;
+
+    /** The order of the applied transitions, stored like in the preferences of the app */
+    private TransitionOrder mOrder = new TransitionOrder();
+
+    private long mTransitionAlarm = NEVER;
+    private Transition mArmedTransition = null;
+    private long mSequence = 0;
+    private long mFadeAlarm = NEVER;
+    private PendingState mFadeState = null;
+    private long mResumeAlarm = NEVER;
+    private long mSnoozeUntil = 0;
+    /** The colors switched by hand until the next transition, null if there are none */
+    private Boolean mManualNight = null;
+
+    /** The last command that was not completed, redelivered after the service was killed */
+    private Command mRedeliverCommand = null;
+    private long mRedelivery = NEVER;
+
+    private long mNextScreenToggle;
+    private long mNextReboot;
+    private long mNextKill;
+    private long mNextManual;
+
+    /**
+     * Construct a simulation
+     *
+     * @param schedule The schedule
+     * @param tz The time zone
+     * @param fadeDuration The fade duration in milliseconds
+     * @param seed The seed of the random screen, reboot and kill events
+     * @param dir An empty directory for the fake sysfs and the state file
+     */
+    public Simulation(NightSchedule schedule, TimeZone tz, long fadeDuration, long seed, File dir) {
+        mSchedule = schedule;
+        mTimeZone = tz;
+        mFadeDuration = fadeDuration;
+        mRandom = new Random(seed);
+        mPanelDir = new File(dir, "samoled_color");
+        mStateFile = new File(dir, "pending_state.bin");
+    }
+
+    /**
+     * Run the simulation
+     *
+     * @param start The start time in milliseconds since the epoch
+     * @param days The number of days to simulate
+     * @return The report
+     * @throws IOException If the fake sysfs cannot be created
+     */
+    public Report run(long start, int days) throws IOException {
+        long begin = System.currentTimeMillis();
+        long end = start + days * DAY;
+        mNow = start;
+        mReport.days = days;
+
+        mNextScreenToggle = mNow + nextExponential(30 * MINUTE);
+        mNextReboot = mNow + nextExponential(30 * DAY);
+        mNextKill = mNow + nextExponential(3 * DAY);
+        mNextManual = mNow + nextExponential(2 * DAY);
+        boot();
+
+        while (mNow < end) {
+            long alarmTime = mScreenOn ? Math.max(Math.min(Math.min(mTransitionAlarm, mFadeAlarm), mResumeAlarm), mNow)
+                    : NEVER;
+            // the widget can only be used while the screen is on
+            long manualTime = mScreenOn ? Math.max(mNextManual, mNow) : NEVER;
+            long next = Math.min(Math.min(mNextScreenToggle, alarmTime),
+                    Math.min(Math.min(mNextReboot, mNextKill), Math.min(mRedelivery, manualTime)));
+            next = Math.min(next, end);
+
+            if (mScreenOn && !hasCorrectColors()) {
+                mReport.wrongColorsMillis += next - mNow;
+            }
+            mNow = next;
+
+            if (mNow == end) {
+                break;
+            } else if (mNow == mNextScreenToggle) {
+                toggleScreen();
+            } else if (mNow == alarmTime) {
+                deliverAlarm();
+            } else if (mNow == mRedelivery) {
+                redeliver();
+            } else if (mNow == manualTime) {
+                mNextManual = mNow + nextExponential(2 * DAY);
+                useWidget();
+            } else if (mNow == mNextReboot) {
+                mNextReboot = mNow + nextExponential(30 * DAY);
+                ++mReport.reboots;
+                boot();
+            } else {
+                mNextKill = mNow + nextExponential(3 * DAY);
+                kill();
+            }
+        }
+
+        if (mBackend != null) {
+            countWrites();
+        }
+        mReport.runtimeMillis = System.currentTimeMillis() - begin;
+        return mReport;
+    }
+
+    private long nextExponential(long mean) {
+        return 1 + (long) (-Math.log(1 - mRandom.nextDouble()) * mean);
+    }
+
+    private FakeColorBackend getBackend() throws IOException {
+        if (mBackend == null) {
+            mBackend = new FakeColorBackend(mPanelDir);
+        }
+        return mBackend;
+    }
+
+    private void countWrites() {
+        mReport.writes += mBackend.getWriteCount();
+        mReport.redundantWrites += mBackend.getRedundantWriteCount();
+    }
+
+    /**
+     * The process dies, all memory is lost.
+     */
+    private void killProcess() {
+        if (mBackend != null) {
+            countWrites();
+            mBackend = null;
+        }
+        mService = null;
+        mWaiting = false;
+        // a new process loads the stored order
+        mOrder = new TransitionOrder(mOrder.getLastSequence(), mOrder.getLastTime());
+    }
+
+    /**
+     * Reboot the device and handle BOOT_COMPLETED like the receiver does.
+     */
+    private void boot() throws IOException {
+        killProcess();
+        mRedeliverCommand = null;
+        mRedelivery = NEVER;
+        mTransitionAlarm = NEVER;
+        mFadeAlarm = NEVER;
+        mResumeAlarm = NEVER;
+        mManualNight = null;
+
+        // the kernel starts with the day colors
+        getBackend().setPanel(ColorController.DAY_MULTIPLIER, ColorController.DAY_MULTIPLIER,
+                ColorController.DAY_MULTIPLIER);
+        mScreenOn = true;
+        mNextScreenToggle = mNow + nextExponential(10 * MINUTE);
+
+        // installAlarms(), the snooze is stored but its alarm died with the reboot
+        if (mSnoozeUntil > mNow) {
+            setSnoozeUntil(mSnoozeUntil);
+        }
+        deliver(new Command(COMMAND_SWITCH, !mSchedule.isDay(mNow, mTimeZone), 0, null, null));
+        armTransition(mNow);
+    }
+
+    private void kill() throws IOException {
+        if (mService == null) {
+            killProcess();
+            return;
+        }
+
+        ++mReport.serviceKills;
+        killProcess();
+        if (mRedeliverCommand != null) {
+            mRedelivery = mNow + 1000 + mRandom.nextInt(5000);
+        }
+    }
+
+    private void redeliver() throws IOException {
+        mRedelivery = NEVER;
+        Command command = mRedeliverCommand;
+        mRedeliverCommand = null;
+        if (command != null) {
+            deliver(command);
+        }
+    }
+
+    /**
+     * Switch the colors by hand or snooze the night colors with the widget
+     */
+    private void useWidget() throws IOException {
+        if (mRandom.nextBoolean()) {
+            ++mReport.manualSwitches;
+            boolean night = mBackend != null ? mBackend.getGreen() == ColorController.NIGHT_MULTIPLIER
+                    : readPanel() == ColorController.NIGHT_MULTIPLIER;
+            deliver(new Command(COMMAND_MANUAL, !night, 0, null, null));
+        } else {
+            ++mReport.snoozes;
+            deliver(new Command(COMMAND_SNOOZE, false, 0, null, null));
+        }
+    }
+
+    private void toggleScreen() throws IOException {
+        mScreenOn = !mScreenOn;
+
+        if (mScreenOn) {
+            mNextScreenToggle = mNow + MINUTE + (long) (mRandom.nextDouble() * 20 * MINUTE);
+            if (Math.min(mTransitionAlarm, mFadeAlarm) < mNow) {
+                ++mReport.deferredAlarms;
+            }
+            if (mWaiting) {
+                ++mReport.screenOnEvents;
+                deliverScreenOn();
+            }
+        } else {
+            long next = mNow + nextExponential(50 * MINUTE);
+            int minute = localMinute(next);
+            if (minute < 7 * 60) { // the user sleeps
+                next += (7 * 60 - minute) * MINUTE + mRandom.nextInt(60) * MINUTE;
+            }
+            mNextScreenToggle = next;
+        }
+    }
+
+    private int localMinute(long time) {
+        long local = time + mTimeZone.getOffset(time);
+        return (int) (((local % DAY) + DAY) % DAY / MINUTE);
+    }
+
+    private void deliverAlarm() throws IOException {
+        if (mResumeAlarm <= Math.min(mTransitionAlarm, mFadeAlarm)) {
+            ++mReport.resumeAlarms;
+            mResumeAlarm = NEVER;
+            deliver(new Command(COMMAND_RESUME, false, 0, null, null));
+        } else if (mTransitionAlarm <= mFadeAlarm) {
+            ++mReport.transitionAlarms;
+            // like TransitionScheduler.onAlarm()
+            Transition transition = mArmedTransition.latest(mSchedule, mNow, mTimeZone);
+            long sequence = mSequence;
+            armTransition(transition.getFollowingAfter(mNow));
+            deliver(new Command(COMMAND_TRANSITION, transition.isToNight(), sequence, transition, null));
+        } else {
+            ++mReport.fadeAlarms;
+            PendingState state = mFadeState;
+            mFadeAlarm = NEVER;
+            mFadeState = null;
+            deliver(new Command(COMMAND_FADE_STEP, state.isToNight(), 0, null, state));
+        }
+    }
+
+    /**
+     * Arm the transition alarm like TransitionScheduler.scheduleNext()
+     */
+    private void armTransition(long after) {
+        mArmedTransition = Transition.next(mSchedule, after, mTimeZone);
+        mTransitionAlarm = mArmedTransition == null ? NEVER : mArmedTransition.getTime();
+        ++mSequence;
+    }
+
+    private ColorController startService() throws IOException {
+        if (mService == null) {
+            ++mReport.serviceStarts;
+            mService = new ColorController(this, getBackend(), mStateFile);
+        }
+        return mService;
+    }
+
+    /**
+     * Handle a command like SetScreenColorService.onStartCommand() and the writer thread
+     */
+    private void deliver(Command command) throws IOException {
+        ColorController service = startService();
+        ColorDecider decider = new ColorDecider(this, mOrder);
+        PendingState target = null;
+
+        switch (command.mType) {
+            case COMMAND_SWITCH:
+                target = decider.onSwitch(command.mToNight);
+                break;
+            case COMMAND_TRANSITION:
+                target = decider.onTransition(command.mSequence, command.mTransition);
+                if (target != null) {
+                    mManualNight = null;
+                }
+                break;
+            case COMMAND_FADE_STEP:
+                PendingState state = command.mFadeState;
+                target = decider.onFadeStep(state.getFadeStart(), state.getFadeDuration(), state.isToNight());
+                break;
+            case COMMAND_MANUAL:
+                target = decider.onManual(command.mToNight);
+                mManualNight = command.mToNight;
+                break;
+            case COMMAND_SNOOZE:
+                target = decider.onSnooze(SNOOZE_MINUTES);
+                mManualNight = null;
+                break;
+            case COMMAND_RESUME:
+                target = decider.onResume();
+                break;
+            default:
+                break;
+        }
+
+        long start = System.nanoTime();
+        boolean done;
+        if (target != null) {
+            done = service.onTarget(target);
+        } else if (command.mType == COMMAND_SCREEN_ON) {
+            done = service.onScreenOn();
+        } else {
+            ++mReport.droppedCommands;
+            done = !service.isWaiting();
+        }
+        mReport.applyNanos.record(System.nanoTime() - start);
+
+        if (done) {
+            mService = null;
+            mRedeliverCommand = null;
+        } else {
+            mRedeliverCommand = command;
+        }
+    }
+
+    private void deliverScreenOn() throws IOException {
+        deliver(new Command(COMMAND_SCREEN_ON, false, 0, null, null));
+    }
+
+    /**
+     * If the fake panel shows the colors of the schedule, of a manual switch or of a snooze,
+     * always true during a fade
+     */
+    private boolean hasCorrectColors() {
+        // at the exact time of a transition the schedule still reports the previous period
+        boolean day = mSchedule.isDay(mNow + 1, mTimeZone);
+
+        if (mFadeDuration > 0) {
+            long lastTransition = mSchedule.getPreviousTransition(mNow + 1, mTimeZone);
+            if (mNow - lastTransition < mFadeDuration + MINUTE) {
+                return true;
+            }
+        }
+
+        if (mNow < mSnoozeUntil) {
+            day = true;
+        } else if (mManualNight != null) {
+            day = !mManualNight;
+        }
+
+        int expected = day ? ColorController.DAY_MULTIPLIER : ColorController.NIGHT_MULTIPLIER;
+        return mBackend != null ? mBackend.getGreen() == expected && mBackend.getBlue() == expected
+                : readPanel() == expected;
+    }
+
+    private int readPanel() {
+        try {
+            FakeColorBackend panel = new FakeColorBackend(mPanelDir);
+            return panel.getGreen() == panel.getBlue() ? panel.getGreen() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public long elapsedRealtime() {
+        return mNow;
+    }
+
+    @Override
+    public boolean isScreenOn() {
+        return mScreenOn;
+    }
+
+    @Override
+    public void setWaitingForScreenOn(boolean waiting) {
+        mWaiting = waiting;
+    }
+
+    @Override
+    public void scheduleFadeStep(long time, long window, PendingState state) {
+        mFadeAlarm = time;
+        mFadeState = state;
+    }
+
+    @Override
+    public PendingState getCurrentTarget(long now) {
+        return new ColorDecider(this, mOrder).getCurrentTarget(now);
+    }
+
+    @Override
+    public TimeZone getTimeZone() {
+        return mTimeZone;
+    }
+
+    @Override
+    public NightSchedule getSchedule(long now) {
+        return mSchedule;
+    }
+
+    @Override
+    public int getLightState() {
+        return AmbientLightFilter.UNKNOWN;
+    }
+
+    @Override
+    public long getFadeDuration() {
+        return mFadeDuration;
+    }
+
+    @Override
+    public PendingState getTarget(boolean toNight, long fadeStart, long fadeDuration) {
+        return PendingState.forTarget(toNight, fadeStart, fadeDuration);
+    }
+
+    @Override
+    public long getSnoozeUntil() {
+        return mSnoozeUntil;
+    }
+
+    @Override
+    public void setSnoozeUntil(long until) {
+        mSnoozeUntil = until;
+        mResumeAlarm = until == 0 ? NEVER : until;
+    }
+
+    @Override
+    public void onColorsSet(String name, boolean written) {
+        if (!written) {
+            ++mReport.skippedApplies;
+        }
+    }
+
+    @Override
+    public void onError(String message, IOException e) {
+        ++mReport.errors;
+    }
+
+    /**
+     * Simulate a year with and without fade and print the reports
+     */
+    public static void main(String[] args) throws IOException {
+        TimeZone tz = TimeZone.getTimeZone("Europe/Berlin");
+        long start = NightSchedule.toMillis(NightSchedule.localDay(System.currentTimeMillis(), tz), 0, tz);
+        PrintWriter writer = new PrintWriter(System.out);
+        long[] fades = {0, 30 * MINUTE};
+
+        for (long fade : fades) {
+            File dir = createTempDir();
+            try {
+                writer.println("== Fixed schedule 08:00-20:00, fade " + fade / MINUTE + " min");
+                new Simulation(NightSchedule.fixed(8 * 60, 20 * 60), tz, fade, 42, dir)
+                        .run(start, 365).print(writer);
+            } finally {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    static File createTempDir() throws IOException {
+        File dir = File.createTempFile("nightcolors", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
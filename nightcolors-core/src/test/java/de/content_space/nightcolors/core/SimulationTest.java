@@ -0,0 +1,58 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the simulation over a year including both DST changes.
+ */
+public class SimulationTest {
+    private static final TimeZone TZ = TimeZone.getTimeZone("Europe/Berlin");
+    // 2027-01-01 00:00 in Europe/Berlin
+    private static final long START = NightSchedule.toMillis(NightSchedule.localDay(1798758000000L, TZ), 0, TZ);
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Simulation.createTempDir();
+    }
+
+    @After
+    public void tearDown() {
+        Simulation.deleteRecursively(mDir);
+    }
+
+    @Test
+    public void testWithoutFade() throws IOException {
+        Simulation.Report report = new Simulation(NightSchedule.fixed(8 * 60, 20 * 60), TZ, 0, 42, mDir)
+                .run(START, 365);
+
+        assertEquals(0, report.errors);
+        assertEquals(0, report.redundantWrites);
+        assertEquals(0, report.wrongColorsMillis);
+        // one alarm per transition, the reboots reinstall the alarms
+        assertTrue(report.transitionAlarms <= 2 * 365);
+        assertEquals(0, report.fadeAlarms);
+    }
+
+    @Test
+    public void testWithFade() throws IOException {
+        Simulation.Report report = new Simulation(NightSchedule.fixed(8 * 60, 20 * 60), TZ,
+                30 * Simulation.MINUTE, 42, mDir).run(START, 365);
+
+        assertEquals(0, report.errors);
+        assertEquals(0, report.redundantWrites);
+        assertEquals(0, report.wrongColorsMillis);
+        // at most 30 steps per fade as they are at least a minute apart
+        assertTrue(report.fadeAlarms <= 30 * 2 * 365);
+    }
+}
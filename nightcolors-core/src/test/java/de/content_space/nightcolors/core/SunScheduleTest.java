@@ -0,0 +1,88 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SunScheduleTest {
+    private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+    private static final TimeZone OSLO = TimeZone.getTimeZone("Europe/Oslo");
+    private static final long MINUTE = NightSchedule.MINUTE_MILLIS;
+    /** The algorithm is accurate to about a minute */
+    private static final int TOLERANCE = 2;
+
+    private static long millis(TimeZone tz, int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(tz);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    private static void assertMinute(int hour, int minute, int actual) {
+        assertEquals(hour * 60 + minute, actual, TOLERANCE);
+    }
+
+    @Test
+    public void testBerlin() {
+        long summer = NightSchedule.localDay(millis(BERLIN, 2027, 6, 21, 12, 0), BERLIN);
+        SunSchedule sun = SunSchedule.compute(52.52, 13.405, BERLIN, summer);
+        // published times: 04:43 and 21:33 in summer time
+        assertMinute(4, 43, sun.getSunrise(summer));
+        assertMinute(21, 33, sun.getSunset(summer));
+
+        long winter = NightSchedule.localDay(millis(BERLIN, 2027, 12, 21, 12, 0), BERLIN);
+        assertMinute(8, 15, sun.getSunrise(winter));
+        assertMinute(15, 54, sun.getSunset(winter));
+    }
+
+    @Test
+    public void testPolarNight() {
+        // Tromso, the sun does not rise from the end of November until the middle of January
+        long now = millis(OSLO, 2027, 12, 21, 12, 0);
+        long today = NightSchedule.localDay(now, OSLO);
+        SunSchedule sun = SunSchedule.compute(69.65, 18.96, OSLO, today);
+        assertEquals(SunSchedule.POLAR_NIGHT, sun.getSunrise(today));
+
+        NightSchedule schedule = NightSchedule.solar(sun);
+        for (long time = now - 12 * 60 * MINUTE; time < now + 12 * 60 * MINUTE; time += 30 * MINUTE) {
+            assertFalse(schedule.isDay(time, OSLO));
+        }
+
+        // the next transition is the first sunrise, not a day at noon
+        long beginDay = schedule.getBeginOfNextDay(now, OSLO);
+        assertTrue(beginDay < schedule.getBeginOfNextNight(now, OSLO));
+        assertTrue(beginDay > millis(OSLO, 2028, 1, 10, 0, 0));
+        assertTrue(beginDay < millis(OSLO, 2028, 1, 20, 0, 0));
+        assertEquals(0, schedule.countTransitions(now - 12 * 60 * MINUTE, now + 12 * 60 * MINUTE, OSLO));
+    }
+
+    @Test
+    public void testMidnightSun() {
+        long now = millis(OSLO, 2027, 6, 21, 23, 59);
+        long today = NightSchedule.localDay(now, OSLO);
+        SunSchedule sun = SunSchedule.compute(69.65, 18.96, OSLO, today);
+        assertEquals(SunSchedule.MIDNIGHT_SUN, sun.getSunset(today));
+
+        // no night at the end of the day
+        NightSchedule schedule = NightSchedule.solar(sun);
+        assertTrue(schedule.isDay(now, OSLO));
+        assertEquals(0, schedule.countTransitions(now - 24 * 60 * MINUTE, now, OSLO));
+        assertTrue(schedule.getBeginOfNextNight(now, OSLO) > millis(OSLO, 2027, 7, 20, 0, 0));
+    }
+
+    @Test
+    public void testEndOfTable() {
+        // a polar night that lasts beyond the table keeps its state
+        long now = millis(OSLO, 2027, 12, 21, 12, 0);
+        long today = NightSchedule.localDay(now, OSLO);
+        SunSchedule sun = SunSchedule.compute(69.65, 18.96, OSLO, today - SunSchedule.DAYS + 2);
+        NightSchedule schedule = NightSchedule.solar(sun);
+        assertEquals(Long.MAX_VALUE, schedule.getBeginOfNextDay(now, OSLO));
+        assertFalse(schedule.isDay(now, OSLO));
+    }
+}
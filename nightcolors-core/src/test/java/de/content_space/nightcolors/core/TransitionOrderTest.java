@@ -0,0 +1,62 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransitionOrderTest {
+    private static final long MINUTE = NightSchedule.MINUTE_MILLIS;
+
+    @Before
+    public void setUp() {
+        NightColorsStats.reset();
+    }
+
+    @Test
+    public void testDuplicate() {
+        TransitionOrder order = new TransitionOrder();
+        assertTrue(order.acceptTransition(1, 60 * MINUTE));
+        // the same alarm delivered again, e.g. after the service was restarted
+        assertFalse(order.acceptTransition(1, 60 * MINUTE));
+        assertTrue(order.acceptTransition(2, 120 * MINUTE));
+        assertEquals(1, NightColorsStats.DROPPED.getCount());
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        TransitionOrder order = new TransitionOrder();
+        assertTrue(order.acceptTransition(3, 120 * MINUTE));
+        // an older alarm that was delayed behind the newer one
+        assertFalse(order.acceptTransition(2, 60 * MINUTE));
+        // the steps of the older fade are dropped, the ones of the newer fade are applied
+        assertFalse(order.acceptFadeStep(60 * MINUTE));
+        assertTrue(order.acceptFadeStep(120 * MINUTE));
+        assertEquals(2, NightColorsStats.DROPPED.getCount());
+    }
+
+    @Test
+    public void testReset() {
+        TransitionOrder order = new TransitionOrder();
+        assertTrue(order.acceptTransition(5, 120 * MINUTE));
+        // the clock was set back, the new alarm is earlier but has a higher sequence number
+        order.reset();
+        assertTrue(order.acceptFadeStep(60 * MINUTE));
+        assertTrue(order.acceptTransition(6, 60 * MINUTE));
+        // the alarm armed before the change is still outdated
+        assertFalse(order.acceptTransition(5, 120 * MINUTE));
+    }
+
+    @Test
+    public void testRestore() {
+        TransitionOrder order = new TransitionOrder();
+        assertTrue(order.acceptTransition(4, 60 * MINUTE));
+
+        // a new process continues with the stored transition and drops the redelivered alarm
+        TransitionOrder restored = new TransitionOrder(order.getLastSequence(), order.getLastTime());
+        assertFalse(restored.acceptTransition(4, 60 * MINUTE));
+        assertTrue(restored.acceptTransition(5, 120 * MINUTE));
+    }
+}
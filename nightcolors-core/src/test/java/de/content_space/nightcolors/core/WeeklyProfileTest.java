@@ -0,0 +1,83 @@
+package de.content_space.nightcolors.core;
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WeeklyProfileTest {
+    private static final TimeZone TZ = TimeZone.getTimeZone("Europe/Berlin");
+    private static final String PROFILE = "mo-fr 07:00 day 19:30 night; sa,su 09:00 day 22:00 night 22:30 day 23:30 night";
+
+    private static long millis(int year, int month, int day, int hour, int minute) {
+        Calendar calendar = Calendar.getInstance(TZ);
+        calendar.clear();
+        calendar.set(year, month - 1, day, hour, minute);
+        return calendar.getTimeInMillis();
+    }
+
+    @Test
+    public void testParse() {
+        // 5 weekdays and 2 weekend days with 2 and 4 transitions
+        assertEquals(5 * 2 + 2 * 4, WeeklyProfile.parse(PROFILE).size());
+        // redundant transitions are removed
+        assertEquals(2, WeeklyProfile.parse("mo-su 08:00 day 20:00 night 21:00 night").size() / 7);
+        assertEquals(2, WeeklyProfile.parse("mo 08:00 day\nfr 20:00 night").size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseSingleState() {
+        WeeklyProfile.parse("mo-su 08:00 day");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseInvalidTime() {
+        WeeklyProfile.parse("mo 25:00 day 20:00 night");
+    }
+
+    @Test
+    public void testLookup() {
+        NightSchedule schedule = NightSchedule.weekly(WeeklyProfile.parse(PROFILE));
+
+        // Friday 2027-03-26 20:00, the weekend starts at Saturday 09:00
+        long now = millis(2027, 3, 26, 20, 0);
+        assertFalse(schedule.isDay(now, TZ));
+        assertEquals(millis(2027, 3, 27, 9, 0), schedule.getBeginOfNextDay(now, TZ));
+        assertEquals(millis(2027, 3, 26, 19, 30), schedule.getPreviousTransition(now, TZ));
+
+        // the reading window on Saturday evening
+        now = millis(2027, 3, 27, 22, 40);
+        assertTrue(schedule.isDay(now, TZ));
+        assertEquals(millis(2027, 3, 27, 23, 30), schedule.getBeginOfNextNight(now, TZ));
+
+        // Sunday night crosses the change to summer time, Monday starts at 07:00 CEST
+        now = millis(2027, 3, 28, 23, 45);
+        assertEquals(millis(2027, 3, 29, 7, 0), schedule.getBeginOfNextDay(now, TZ));
+        assertEquals(millis(2027, 3, 28, 23, 30), schedule.getPreviousTransition(now, TZ));
+
+        // a transition is returned at its exact time
+        now = millis(2027, 3, 29, 7, 0);
+        assertEquals(now, schedule.getBeginOfNextDay(now, TZ));
+        assertEquals(now, schedule.getPreviousTransition(now, TZ));
+    }
+
+    @Test
+    public void testMatchesFixedSchedule() {
+        NightSchedule weekly = NightSchedule.weekly(WeeklyProfile.parse("mo-su 08:00 day 20:00 night"));
+        NightSchedule fixed = NightSchedule.fixed(8 * 60, 20 * 60);
+        Random random = new Random(42);
+        long start = millis(2027, 1, 1, 0, 0);
+
+        for (int i = 0; i < 100000; ++i) {
+            long now = start + (long) (random.nextDouble() * 365 * NightSchedule.DAY_MILLIS);
+            assertEquals(fixed.getBeginOfNextDay(now, TZ), weekly.getBeginOfNextDay(now, TZ));
+            assertEquals(fixed.getBeginOfNextNight(now, TZ), weekly.getBeginOfNextNight(now, TZ));
+            assertEquals(fixed.getPreviousTransition(now, TZ), weekly.getPreviousTransition(now, TZ));
+        }
+    }
+}
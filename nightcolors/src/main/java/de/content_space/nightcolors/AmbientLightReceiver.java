@@ -0,0 +1,19 @@
+package de.content_space.nightcolors;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Starts AmbientLightService when the user unlocks the device. Only enabled in the adaptive mode,
+ * so the process is not started for every unlock otherwise.
+ */
+public class AmbientLightReceiver extends BroadcastReceiver {
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        SetScreenColorService.recordStartup();
+        if (Intent.ACTION_USER_PRESENT.equals(intent.getAction())) {
+            AmbientLightService.start(context);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package de.content_space.nightcolors;
+
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.IBinder;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.util.TimeZone;
+
+import de.content_space.nightcolors.core.AmbientLightFilter;
+import de.content_space.nightcolors.core.EventJournal;
+import de.content_space.nightcolors.core.NightSchedule;
+
+/**
+ * Watches the ambient light while the screen is on so the colors can follow the room near the
+ * scheduled transitions, see AmbientLightFilter.isDay().
+ *
+ * The service is not sticky: it is started when the device is unlocked or the screen is turned
+ * on and stops itself when the screen is turned off, so it does not run while the device sleeps.
+ *
+ * The light sensor is registered with a long maximum report latency, the readings are collected
+ * in the sensor FIFO and delivered in batches, so the CPU wakes rarely. Only a change of the
+ * colors is sent to SetScreenColorService, readings that do not cross a threshold end here.
+ */
+public class AmbientLightService extends Service implements SensorEventListener {
+    /** The requested time between two readings in microseconds */
+    private static final int SAMPLING_PERIOD = 5 * 1000 * 1000;
+    /** The longest time readings may wait in the sensor FIFO in microseconds */
+    private static final int MAX_REPORT_LATENCY = 60 * 1000 * 1000;
+
+    /** The state of the room, read by the service when it decides about the colors */
+    private static volatile int sLightState = AmbientLightFilter.UNKNOWN;
+
+    private final AmbientLightFilter mFilter = new AmbientLightFilter();
+    private SensorManager mSensorManager = null;
+    private Sensor mSensor = null;
+    private boolean mRegistered = false;
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            SetScreenColorService.journal(context, EventJournal.SCREEN_OFF, 0, 0);
+            stopSelf();
+        }
+    };
+
+    /**
+     * Enable or disable the adaptive mode according to the preferences, the service is started
+     * right away if the screen is on
+     *
+     * @param context The context
+     */
+    static void update(Context context) {
+        boolean adaptive = isAdaptive(context);
+        PackageManager pm = context.getPackageManager();
+        ComponentName receiver = new ComponentName(context, AmbientLightReceiver.class);
+        int enabled = adaptive ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                : PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+        if (pm.getComponentEnabledSetting(receiver) != enabled) {
+            pm.setComponentEnabledSetting(receiver, enabled, PackageManager.DONT_KILL_APP);
+        }
+
+        if (adaptive) {
+            PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            if (power.isScreenOn()) {
+                context.startService(new Intent(context, AmbientLightService.class));
+            }
+        } else {
+            context.stopService(new Intent(context, AmbientLightService.class));
+            sLightState = AmbientLightFilter.UNKNOWN;
+        }
+    }
+
+    /**
+     * Start the service if the adaptive mode is on, called when the screen has been turned on
+     *
+     * @param context The context
+     */
+    static void start(Context context) {
+        if (isAdaptive(context)) {
+            context.startService(new Intent(context, AmbientLightService.class));
+        }
+    }
+
+    private static boolean isAdaptive(Context context) {
+        return NightTimeHelper.getPreferences(context).getBoolean(NightColorsSettingsFragment.KEY_PREF_ADAPTIVE, false);
+    }
+
+    /**
+     * Get the state of the room
+     *
+     * @return AmbientLightFilter.DARK or BRIGHT, UNKNOWN if the adaptive mode is off or the screen is off
+     */
+    static int getLightState() {
+        return sLightState;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        SetScreenColorService.recordStartup();
+
+        mSensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_LIGHT);
+        if (mSensor == null) {
+            Log.w("NightColors", "No light sensor found, the colors only follow the schedule");
+            stopSelf();
+            return;
+        }
+
+        registerReceiver(mScreenReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (mSensor == null || !pm.isScreenOn()) {
+            // the screen has been turned off again before the service was started
+            stopSelf(startId);
+        } else {
+            registerSensor();
+        }
+
+        // started again by the next unlock or screen on event if the process is killed
+        return START_NOT_STICKY;
+    }
+
+    private void registerSensor() {
+        if (!mRegistered) {
+            mRegistered = mSensorManager.registerListener(this, mSensor, SAMPLING_PERIOD, MAX_REPORT_LATENCY);
+            Log.i("NightColors", "Watching the ambient light, sensor FIFO holds "
+                    + mSensor.getFifoMaxEventCount() + " readings");
+        }
+    }
+
+    private void unregisterSensor() {
+        if (mRegistered) {
+            mSensorManager.unregisterListener(this);
+            mRegistered = false;
+        }
+
+        // the colors cannot change while the screen is off, old readings say nothing about the room
+        // later, the colors that have been set are remembered by the ColorController
+        mFilter.reset();
+        sLightState = AmbientLightFilter.UNKNOWN;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        int previous = mFilter.getState();
+        if (!mFilter.onSample(event.timestamp, event.values[0])) {
+            return;
+        }
+
+        int state = mFilter.getState();
+        sLightState = state;
+
+        long now = System.currentTimeMillis();
+        TimeZone tz = TimeZone.getDefault();
+        NightSchedule schedule = NightTimeHelper.getSchedule(this, NightSchedule.localDay(now, tz));
+        boolean day = AmbientLightFilter.isDay(schedule, now, tz, state);
+
+        // a crossing far from a transition does not change the colors
+        if (day != AmbientLightFilter.isDay(schedule, now, tz, previous)) {
+            Log.i("NightColors", "Room is " + (state == AmbientLightFilter.DARK ? "dark" : "bright") + " at "
+                    + mFilter.getAverage() + " lux, switching to " + (day ? "day" : "night") + " colors");
+            SetScreenColorService.sendWakefulWork(this, day ? SetScreenColorService.ACTION_DAY
+                    : SetScreenColorService.ACTION_NIGHT);
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    @Override
+    public void onDestroy() {
+        if (mSensor != null) {
+            unregisterReceiver(mScreenReceiver);
+            unregisterSensor();
+        }
+        super.onDestroy();
+    }
+}
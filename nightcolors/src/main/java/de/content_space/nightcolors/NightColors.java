@@ -1,22 +1,38 @@
 package de.content_space.nightcolors;
 
 import android.support.v7.app.AppCompatActivity;
+import android.content.Context;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import de.content_space.nightcolors.core.NightColorsStats;
+
 public class NightColors extends AppCompatActivity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long start = SystemClock.elapsedRealtimeNanos();
         super.onCreate(savedInstanceState);
 
-        SetScreenColorService.installAlarms(this);
+        // nothing to do in most cases, find that out without blocking the UI
+        final Context context = getApplicationContext();
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                SetScreenColorService.installAlarmsIfChanged(context);
+            }
+        });
 
         // Display the fragment as the main content.
         getFragmentManager().beginTransaction()
                 .replace(android.R.id.content, new NightColorsSettingsFragment())
                 .commit();
+
+        // the cold start cost before the fingerprint check included installAlarms() here
+        NightColorsStats.ACTIVITY_CREATE.record((SystemClock.elapsedRealtimeNanos() - start) / 1000);
     }
 
 
@@ -0,0 +1,36 @@
+package de.content_space.nightcolors;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Receives the requests of the user interface in the process of SetScreenColorService.
+ *
+ * Unlike NightColorsReceiver it is not exported, so other apps can neither read the statistics
+ * and the journal nor force the alarms to be installed again.
+ */
+public class NightColorsCommandReceiver extends BroadcastReceiver {
+    /** Reload the preferences and install the alarms, sent by the user interface */
+    static final String ACTION_INSTALL_ALARMS = "de.content_space.nightcolors.action.INSTALL_ALARMS";
+    /** Return the statistics of this process as result data of the ordered broadcast */
+    static final String ACTION_DUMP_STATS = "de.content_space.nightcolors.action.DUMP_STATS";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        SetScreenColorService.recordStartup();
+        final String action = intent.getAction();
+
+        if (ACTION_INSTALL_ALARMS.equals(action)) {
+            NightTimeHelper.invalidate();
+            SetScreenColorService.installAlarms(context);
+        } else if (ACTION_DUMP_STATS.equals(action)) {
+            StringWriter stats = new StringWriter();
+            SetScreenColorService.dumpStats(context, new PrintWriter(stats));
+            setResultData(stats.toString());
+        }
+    }
+}
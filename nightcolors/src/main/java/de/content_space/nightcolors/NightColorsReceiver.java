@@ -3,16 +3,45 @@ package de.content_space.nightcolors;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.os.SystemClock;
 
+import de.content_space.nightcolors.core.EventJournal;
+
+/**
+ * Receives the alarms and system events, runs in the process of SetScreenColorService.
+ */
 public class NightColorsReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
+        SetScreenColorService.recordStartup();
         final String action = intent.getAction();
 
         if (action.equals(Intent.ACTION_BOOT_COMPLETED)) {
+            SetScreenColorService.journal(context, EventJournal.BOOT, 0, 0);
+            // the kernel might have changed with a system update
+            SetScreenColorService.requestDiscovery(context);
             SetScreenColorService.installAlarms(context);
+        } else if (Intent.ACTION_TIME_CHANGED.equals(action) || Intent.ACTION_TIMEZONE_CHANGED.equals(action)) {
+            TransitionScheduler.onClockChanged(context, false);
+        } else if (Intent.ACTION_DATE_CHANGED.equals(action)) {
+            TransitionScheduler.onClockChanged(context, true);
         } else {
-            SetScreenColorService.sendWakefulWork(context, action);
+            if (TransitionScheduler.ACTION_TRANSITION.equals(action)) {
+                TransitionScheduler.onAlarm(context, intent);
+            } else if (SetScreenColorService.ACTION_FADE_STEP.equals(action)) {
+                SetScreenColorService.journal(context, EventJournal.FADE_STEP, 0, 0);
+            } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                SetScreenColorService.journal(context, EventJournal.SCREEN_ON, 0, 0);
+                AmbientLightService.start(context);
+            }
+
+            // forward the extras, e.g. of a fade step
+            Intent service = new Intent(intent);
+            service.setClass(context, SetScreenColorService.class);
+            if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                service.putExtra(SetScreenColorService.EXTRA_RECEIVED, SystemClock.elapsedRealtimeNanos());
+            }
+            SetScreenColorService.sendWakefulWork(context, service);
         }
     }
 }
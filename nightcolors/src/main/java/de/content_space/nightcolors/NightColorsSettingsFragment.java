@@ -1,8 +1,19 @@
 package de.content_space.nightcolors;
 
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.preference.Preference;
 import android.preference.PreferenceFragment;
 import android.os.Bundle;
+import android.widget.Toast;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import de.content_space.nightcolors.core.WeeklyProfile;
 
 /**
  * A placeholder fragment containing a simple view.
@@ -11,6 +22,35 @@ public class NightColorsSettingsFragment extends PreferenceFragment
 implements SharedPreferences.OnSharedPreferenceChangeListener {
     public static final String KEY_PREF_START = "pref_start";
     public static final String KEY_PREF_END = "pref_end";
+    public static final String KEY_PREF_FADE = "pref_fade";
+    public static final String KEY_PREF_SOLAR = "pref_solar";
+    public static final String KEY_PREF_LATITUDE = "pref_latitude";
+    public static final String KEY_PREF_LONGITUDE = "pref_longitude";
+    public static final String KEY_PREF_PROFILE = "pref_profile";
+    public static final String KEY_PREF_TEMPERATURE = "pref_temperature";
+    public static final String KEY_PREF_RED = "pref_red";
+    public static final String KEY_PREF_ADAPTIVE = "pref_adaptive";
+    public static final String KEY_PREF_ROOT = "pref_root";
+    public static final String KEY_PREF_STATS = "pref_stats";
+
+    /**
+     * The preferences that change the schedule or the colors, they must all be part of
+     * NightTimeHelper.getFingerprint() so an edit that is reverted does not reschedule.
+     */
+    private static final Set<String> RESCHEDULE_KEYS = new HashSet<String>(Arrays.asList(
+            KEY_PREF_START, KEY_PREF_END, KEY_PREF_FADE, KEY_PREF_SOLAR, KEY_PREF_LATITUDE,
+            KEY_PREF_LONGITUDE, KEY_PREF_PROFILE, KEY_PREF_TEMPERATURE, KEY_PREF_RED, KEY_PREF_ADAPTIVE, KEY_PREF_ROOT));
+    /** The time in milliseconds that is waited for further edits before rescheduling */
+    static final long RESCHEDULE_DELAY = 500;
+
+    private final Handler mHandler = new Handler();
+    private boolean mReschedulePending = false;
+    private final Runnable mReschedule = new Runnable() {
+        @Override
+        public void run() {
+            reschedule();
+        }
+    };
 
     public NightColorsSettingsFragment() {
     }
@@ -20,13 +60,45 @@ implements SharedPreferences.OnSharedPreferenceChangeListener {
         super.onCreate(savedInstanceState);
 
         addPreferencesFromResource(R.xml.preferences);
+
+        findPreference(KEY_PREF_PROFILE).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+            @Override
+            public boolean onPreferenceChange(Preference preference, Object newValue) {
+                String profile = ((String) newValue).trim();
+                if (profile.length() == 0) {
+                    return true;
+                }
+
+                try {
+                    WeeklyProfile.parse(profile);
+                    return true;
+                } catch (IllegalArgumentException e) {
+                    Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_LONG).show();
+                    return false;
+                }
+            }
+        });
+
+        findPreference(KEY_PREF_STATS).setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+            @Override
+            public boolean onPreferenceClick(Preference preference) {
+                getFragmentManager().beginTransaction()
+                        .replace(android.R.id.content, new NightColorsStatsFragment())
+                        .addToBackStack(null)
+                        .commit();
+                return true;
+            }
+        });
     }
 
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
                                           String key) {
-        if (key.equals(KEY_PREF_START) || key.equals(KEY_PREF_END)) {
-            SetScreenColorService.installAlarms(getActivity().getApplicationContext());
+        if (RESCHEDULE_KEYS.contains(key)) {
+            // collect the edits of a short period into a single reschedule
+            mHandler.removeCallbacks(mReschedule);
+            mHandler.postDelayed(mReschedule, RESCHEDULE_DELAY);
+            mReschedulePending = true;
             /*
             Preference connectionPref = findPreference(key);
             // Set summary to be the user-description for the selected value
@@ -35,6 +107,21 @@ implements SharedPreferences.OnSharedPreferenceChangeListener {
         }
     }
 
+    /**
+     * Install the alarms in the background if the schedule has changed
+     */
+    private void reschedule() {
+        mReschedulePending = false;
+        final Context context = getActivity().getApplicationContext();
+
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                SetScreenColorService.installAlarmsIfChanged(context);
+            }
+        });
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -47,5 +134,11 @@ implements SharedPreferences.OnSharedPreferenceChangeListener {
         super.onPause();
         getPreferenceScreen().getSharedPreferences()
                 .unregisterOnSharedPreferenceChangeListener(this);
+
+        // do not lose edits that are still waiting for the delay
+        if (mReschedulePending) {
+            mHandler.removeCallbacks(mReschedule);
+            reschedule();
+        }
     }
 }
@@ -0,0 +1,59 @@
+package de.content_space.nightcolors;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Process;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import de.content_space.nightcolors.core.NightColorsStats;
+
+/**
+ * Shows the statistics collected in NightColorsStats.
+ *
+ * The statistics are collected in the process of the service, they are requested with an
+ * ordered broadcast that the receiver of that process answers.
+ */
+public class NightColorsStatsFragment extends Fragment {
+    public NightColorsStatsFragment() {
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+        final TextView text = new TextView(getActivity());
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextIsSelectable(true);
+        int padding = (int) getActivity().getResources().getDimension(R.dimen.activity_horizontal_margin);
+        text.setPadding(padding, padding, padding, padding);
+
+        // the footprint of both processes, it is not a measurement of the single process that
+        // ran the user interface and the service before they were split
+        NightColorsStats.Histogram create = NightColorsStats.ACTIVITY_CREATE;
+        final String footprint = "User interface process " + Process.myPid() + ": pss=" + Debug.getPss()
+                + "kB classes=" + Debug.getLoadedClassCount() + " settings screen create: count="
+                + create.getCount() + " mean=" + (create.getCount() == 0 ? 0 : create.getSum() / create.getCount())
+                + "us max=" + create.getMax() + "us\n";
+
+        Intent request = new Intent(getActivity(), NightColorsCommandReceiver.class);
+        request.setAction(NightColorsCommandReceiver.ACTION_DUMP_STATS);
+        getActivity().sendOrderedBroadcast(request, null, new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                text.setText(footprint + getResultData());
+            }
+        }, null, Activity.RESULT_OK, null, null);
+
+        ScrollView scroll = new ScrollView(getActivity());
+        scroll.addView(text);
+        return scroll;
+    }
+}
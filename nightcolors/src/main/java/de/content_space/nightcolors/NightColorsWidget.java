@@ -0,0 +1,88 @@
+package de.content_space.nightcolors;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.widget.RemoteViews;
+
+/**
+ * Home screen widget to switch the colors by hand and to snooze the night colors.
+ *
+ * The buttons are delivered to the widget itself, which records the time of the tap and starts
+ * SetScreenColorService with the target that is the opposite of the current colors, so a tap
+ * does not go through the schedule. The widget is only updated when the direction of the colors
+ * changes and the colors have been written, not for every fade step.
+ */
+public class NightColorsWidget extends AppWidgetProvider {
+    /** The length of a snooze started from the widget in minutes */
+    static final int SNOOZE_MINUTES = 30;
+
+    /** The colors the widget shows: 1 for night, 0 for day, -1 if not known */
+    private static int sShownNight = -1;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (SetScreenColorService.ACTION_MANUAL.equals(action) || SetScreenColorService.ACTION_SNOOZE.equals(action)) {
+            SetScreenColorService.recordStartup();
+            // the latency of a manual switch is measured from here, the earliest point the app sees
+            Intent service = new Intent(intent);
+            service.setClass(context, SetScreenColorService.class);
+            service.putExtra(SetScreenColorService.EXTRA_TAPPED, SystemClock.elapsedRealtimeNanos());
+            SetScreenColorService.sendWakefulWork(context, service);
+        } else {
+            super.onReceive(context, intent);
+        }
+    }
+
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
+        SetScreenColorService.recordStartup();
+        boolean night = sShownNight >= 0 ? sShownNight == 1 : !new NightTimeHelper(context).isDay();
+        appWidgetManager.updateAppWidget(appWidgetIds, createViews(context, night));
+    }
+
+    /**
+     * Show the colors that have been set in all widgets
+     *
+     * @param context The context
+     * @param night If the night colors have been set
+     */
+    static void update(Context context, boolean night) {
+        synchronized (NightColorsWidget.class) {
+            if (sShownNight == (night ? 1 : 0)) {
+                return;
+            }
+            sShownNight = night ? 1 : 0;
+        }
+
+        AppWidgetManager manager = AppWidgetManager.getInstance(context);
+        int[] ids = manager.getAppWidgetIds(new ComponentName(context, NightColorsWidget.class));
+        if (ids != null && ids.length > 0) {
+            manager.updateAppWidget(ids, createViews(context, night));
+        }
+    }
+
+    private static RemoteViews createViews(Context context, boolean night) {
+        RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
+        views.setTextViewText(R.id.widget_toggle, context.getString(night ? R.string.widget_day : R.string.widget_night));
+
+        Intent toggle = new Intent(context, NightColorsWidget.class);
+        toggle.setAction(SetScreenColorService.ACTION_MANUAL);
+        toggle.putExtra(TransitionScheduler.EXTRA_TO_NIGHT, !night);
+        views.setOnClickPendingIntent(R.id.widget_toggle,
+                PendingIntent.getBroadcast(context, 1, toggle, PendingIntent.FLAG_UPDATE_CURRENT));
+
+        Intent snooze = new Intent(context, NightColorsWidget.class);
+        snooze.setAction(SetScreenColorService.ACTION_SNOOZE);
+        snooze.putExtra(SetScreenColorService.EXTRA_SNOOZE_MINUTES, SNOOZE_MINUTES);
+        views.setOnClickPendingIntent(R.id.widget_snooze,
+                PendingIntent.getBroadcast(context, 2, snooze, PendingIntent.FLAG_UPDATE_CURRENT));
+
+        return views;
+    }
+}
@@ -2,67 +2,181 @@ package de.content_space.nightcolors;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
+import android.util.Log;
 
-import java.util.Calendar;
+import java.util.TimeZone;
+
+import de.content_space.nightcolors.core.NightSchedule;
+import de.content_space.nightcolors.core.SunSchedule;
+import de.content_space.nightcolors.core.WeeklyProfile;
 
 /**
  * Helper class for reading the time preferences and interpreting them.
+ *
+ * The preferences are read into an immutable NightSchedule snapshot that is shared by all
+ * helpers and only rebuilt when the preferences change.
  */
 public class NightTimeHelper {
-    private Calendar mBeginNextDay = null;
-    private Calendar mBeginNextNight = null;
+    private static NightSchedule sSchedule = null;
+    private static SharedPreferences sSharedPref = null;
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                    invalidate();
+                }
+            };
+
+    private final long mBeginNextDay;
+    private final long mBeginNextNight;
 
     /**
-     * Construct the NightTimeHelper
+     * Construct the NightTimeHelper for the current time
      *
      * @param context The application context for which the preferences shall be loaded
      */
     public NightTimeHelper(Context context) {
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
+        this(context, System.currentTimeMillis(), TimeZone.getDefault());
+    }
 
-        mBeginNextDay = prefToNextCalendar(sharedPref.getInt(NightColorsSettingsFragment.KEY_PREF_START, 480));
-        mBeginNextNight = prefToNextCalendar(sharedPref.getInt(NightColorsSettingsFragment.KEY_PREF_END, 1200));
+    /**
+     * Construct the NightTimeHelper for the given time
+     *
+     * @param context The application context for which the preferences shall be loaded
+     * @param now The time in milliseconds since the epoch
+     * @param tz The time zone
+     */
+    public NightTimeHelper(Context context, long now, TimeZone tz) {
+        NightSchedule schedule = getSchedule(context, NightSchedule.localDay(now, tz));
+
+        mBeginNextDay = schedule.getBeginOfNextDay(now, tz);
+        mBeginNextNight = schedule.getBeginOfNextNight(now, tz);
     }
 
     /**
-     * Converts the preference value (stored in minutes after midnight) to a Calendar instance on the current day.
-     * @param pref The input time in minutes after midnight
-     * @return The input time as Calendar object on the current day
+     * Get the schedule snapshot, reading the preferences only if they changed since the last call.
+     *
+     * @param context The application context for which the preferences shall be loaded
+     * @param today The current local day
+     * @return The schedule
      */
-    private Calendar prefToNextCalendar(int pref) {
-        int hour = pref/60;
-        int minute = pref%60;
-
-        Calendar result = Calendar.getInstance();
-        result.set(Calendar.SECOND, 0); // normalize second and millisecond
-        result.set(Calendar.MILLISECOND, 0);
-        result.set(Calendar.HOUR_OF_DAY, hour);
-        result.set(Calendar.MINUTE, minute);
-
-        // if we are after that time, the next time is tomorrow
-        if (Calendar.getInstance().after(result)) {
-            result.add(Calendar.DATE, 1);
+    static synchronized NightSchedule getSchedule(Context context, long today) {
+        if (sSchedule == null || !sSchedule.covers(today)) {
+            SharedPreferences sharedPref = getPreferences(context);
+
+            if (sSharedPref != sharedPref) {
+                // the preferences only keep a weak reference to the listener, we keep the strong one
+                sharedPref.registerOnSharedPreferenceChangeListener(sListener);
+                sSharedPref = sharedPref;
+            }
+
+            sSchedule = readSchedule(context, sharedPref);
         }
 
-        return result;
+        return sSchedule;
+    }
+
+    /**
+     * Get the default preferences in a way that sees changes made by the settings, which run in
+     * a different process than the service.
+     *
+     * @param context The context
+     * @return The preferences
+     */
+    @SuppressWarnings("deprecation")
+    static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(context.getPackageName() + "_preferences",
+                Context.MODE_MULTI_PROCESS);
+    }
+
+    /**
+     * Get a string that identifies the configured schedule and night colors, it changes whenever
+     * the alarms need to be installed again.
+     *
+     * @param context The context
+     * @return The fingerprint
+     */
+    static String getFingerprint(Context context) {
+        SharedPreferences sharedPref = getPreferences(context);
+        String schedule;
+
+        if (sharedPref.getBoolean(NightColorsSettingsFragment.KEY_PREF_SOLAR, false)) {
+            schedule = "solar " + sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_LATITUDE, "0")
+                    + " " + sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_LONGITUDE, "0");
+        } else {
+            schedule = "fixed " + sharedPref.getInt(NightColorsSettingsFragment.KEY_PREF_START, 480)
+                    + "-" + sharedPref.getInt(NightColorsSettingsFragment.KEY_PREF_END, 1200)
+                    + " " + sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_PROFILE, "").trim();
+        }
+
+        // the colors are applied when the alarms are installed
+        return schedule + " " + TimeZone.getDefault().getID()
+                + " " + sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_FADE, "0")
+                + " " + sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_TEMPERATURE, "0")
+                + " " + sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_RED, "100")
+                + " " + sharedPref.getBoolean(NightColorsSettingsFragment.KEY_PREF_ADAPTIVE, false)
+                + " " + sharedPref.getBoolean(NightColorsSettingsFragment.KEY_PREF_ROOT, false);
+    }
+
+    /**
+     * Drop the schedule snapshot so the preferences are read again on the next use.
+     */
+    static synchronized void invalidate() {
+        sSchedule = null;
+    }
+
+    private static NightSchedule readSchedule(Context context, SharedPreferences sharedPref) {
+        if (sharedPref.getBoolean(NightColorsSettingsFragment.KEY_PREF_SOLAR, false)) {
+            double latitude = parseDegrees(sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_LATITUDE, "0"), 90);
+            double longitude = parseDegrees(sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_LONGITUDE, "0"), 180);
+            return NightSchedule.solar(SunSchedule.get(context.getFilesDir(), latitude, longitude,
+                    TimeZone.getDefault(), System.currentTimeMillis()));
+        }
+
+        String profile = sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_PROFILE, "");
+        if (profile.trim().length() > 0) {
+            try {
+                return NightSchedule.weekly(WeeklyProfile.parse(profile));
+            } catch (IllegalArgumentException e) {
+                Log.e("NightColors", "Invalid weekly profile, using the fixed times", e);
+            }
+        }
+
+        return NightSchedule.fixed(sharedPref.getInt(NightColorsSettingsFragment.KEY_PREF_START, 480),
+                sharedPref.getInt(NightColorsSettingsFragment.KEY_PREF_END, 1200));
+    }
+
+    /**
+     * Parse a latitude or longitude preference
+     *
+     * @param pref The preference value in degrees
+     * @param limit The maximum absolute value
+     * @return The value in degrees, 0 if it is invalid
+     */
+    private static double parseDegrees(String pref, double limit) {
+        try {
+            double result = Double.parseDouble(pref.trim());
+            return Math.abs(result) <= limit ? result : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     /**
      * Get the beginning of the next day period
      *
-     * @return The beginning of the next day period
+     * @return The beginning of the next day period in milliseconds since the epoch
      */
-    public Calendar getBeginOfNextDay() {
+    public long getBeginOfNextDay() {
         return mBeginNextDay;
     }
 
     /**
      * Get the beginning of the next night period
      *
-     * @return The beginning of the next night period
+     * @return The beginning of the next night period in milliseconds since the epoch
      */
-    public Calendar getBeginOfNextNight() {
+    public long getBeginOfNextNight() {
         return mBeginNextNight;
     }
 
@@ -72,6 +186,6 @@ public class NightTimeHelper {
      * @return If we are currently in the day period
      */
     public boolean isDay() {
-        return (mBeginNextDay.after(mBeginNextNight));
+        return mBeginNextDay > mBeginNextNight;
     }
 }
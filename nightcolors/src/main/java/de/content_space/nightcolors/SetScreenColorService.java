@@ -1,105 +1,511 @@
 package de.content_space.nightcolors;
 
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.content.Context;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
-import java.text.DateFormat;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Calendar;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TimeZone;
+
+import de.content_space.nightcolors.core.AmbientLightFilter;
+import de.content_space.nightcolors.core.ColorBackend;
+import de.content_space.nightcolors.core.ColorController;
+import de.content_space.nightcolors.core.ColorDecider;
+import de.content_space.nightcolors.core.ColorTemperature;
+import de.content_space.nightcolors.core.ColorTransition;
+import de.content_space.nightcolors.core.DeviceProfile;
+import de.content_space.nightcolors.core.EventJournal;
+import de.content_space.nightcolors.core.NightColorsStats;
+import de.content_space.nightcolors.core.NightSchedule;
+import de.content_space.nightcolors.core.PendingState;
+import de.content_space.nightcolors.core.RootShell;
+import de.content_space.nightcolors.core.Transition;
+import de.content_space.nightcolors.core.TransitionOrder;
 
 /**
  * This is the service that does the actual work of setting screen colors.
  *
  * This service can run in the background in order to wait for the screen to be turned on.
+ * The colors are written on a single writer thread that only handles the latest target, so a
+ * burst of commands results in a single write and the main thread never touches sysfs.
  *
  * This uses some code from CommonsWare Android Components: WakefulIntentService
  * @see <a href="https://github.com/commonsguy/cwac-wakeful">github.com/commonsguy/cwac-wakeful</a>
  */
-public class SetScreenColorService extends Service {
+public class SetScreenColorService extends Service implements ColorController.Host {
     public static final String ACTION_NIGHT = "de.content_space.nightcolors.action.NIGHT";
     public static final String ACTION_DAY = "de.content_space.nightcolors.action.DAY";
-    private static final String BASE_PATH = "/sys/class/misc/samoled_color/";
-    private static final String GREEN_PATH = BASE_PATH + "green_multiplier";
-    private static final String BLUE_PATH = BASE_PATH + "blue_multiplier";
+    public static final String ACTION_FADE_STEP = "de.content_space.nightcolors.action.FADE_STEP";
+    /** Set the colors of EXTRA_TO_NIGHT by hand until the next transition */
+    public static final String ACTION_MANUAL = "de.content_space.nightcolors.action.MANUAL";
+    /** Set the day colors and suppress the night colors for EXTRA_SNOOZE_MINUTES */
+    public static final String ACTION_SNOOZE = "de.content_space.nightcolors.action.SNOOZE";
+    /** The start time of the fade in milliseconds since the epoch */
+    static final String EXTRA_FADE_START = "de.content_space.nightcolors.extra.FADE_START";
+    /** The duration of the fade in milliseconds */
+    static final String EXTRA_FADE_DURATION = "de.content_space.nightcolors.extra.FADE_DURATION";
+    /** If the fade goes to the night colors */
+    static final String EXTRA_FADE_TO_NIGHT = "de.content_space.nightcolors.extra.FADE_TO_NIGHT";
+    /** The elapsed realtime in nanoseconds at which a screen on event was received */
+    static final String EXTRA_RECEIVED = "de.content_space.nightcolors.extra.RECEIVED";
+    /** The elapsed realtime in nanoseconds when a button of the widget has been tapped */
+    static final String EXTRA_TAPPED = "de.content_space.nightcolors.extra.TAPPED";
+    /** The duration of a snooze in minutes */
+    static final String EXTRA_SNOOZE_MINUTES = "de.content_space.nightcolors.extra.SNOOZE_MINUTES";
+    /** The id of the wake lock acquisition that belongs to the intent */
+    static final String EXTRA_WAKE_LOCK = "de.content_space.nightcolors.extra.WAKE_LOCK";
+    /** The longest time a single command may keep the device awake */
+    private static final long WAKE_LOCK_TIMEOUT = 60 * 1000;
+    /** The time budget of a manual switch in microseconds, a frame at 60 Hz */
+    private static final long FRAME_MICROS = 16667;
 
     static final String NAME= "de.content_space.nightcolors.SetScreenColorService";
-    private static volatile PowerManager.WakeLock lockStatic=null;
+    private static ColorBackend sColorBackend = null;
+    private static boolean sProfileLoaded = false;
+    /** The root of the file system below which the color interfaces are probed */
+    private static File sSysfsRoot = new File("/");
+    /** The root shell of this process, kept open between transitions */
+    private static RootShell sRootShell = null;
+    /** The wake locks of the commands that are still being handled, by their id */
+    private static final HashMap<Long, HeldLock> sLocks = new HashMap<Long, HeldLock>();
+    private static int sNextLockId = 0;
+    private static long sStartupCpuTime = -1;
+    private static EventJournal sJournal = null;
+    /** The applied transitions, to drop duplicate and stale alarms, loaded from the preferences */
+    private static TransitionOrder sTransitionOrder = null;
+    private static boolean sJournalOpened = false;
 
     private NightColorsReceiver mReceiver = null;
-    private String mLastAction = null;
+    private boolean mDestroyed = false;
+    /** Only accessed on the writer thread */
+    private ColorController mController = null;
+    /** The target that waits for the screen to be turned on, only accessed on the writer thread */
+    private PendingState mStagedTarget = null;
+    private HandlerThread mWriterThread = null;
+    private Handler mWriter = null;
+    private final Runnable mApply = new Runnable() {
+        @Override
+        public void run() {
+            applyQueued();
+        }
+    };
+
+    // the commands handed from the main thread to the writer thread, guarded by this
+    private PendingState mQueuedTarget = null;
+    private boolean mQueuedScreenOn = false;
+    private long mQueuedReceived = 0;
+    private long mQueuedManual = 0;
+    private long[] mQueuedLocks = new long[4];
+    private int mQueuedCount = 0;
+    private int mQueuedStartId = 0;
+    private boolean mApplyPosted = false;
 
 
     /**
-     * Starts this service to perform action Night. If
-     * the service is already performing a task this action will be queued.
+     * Get the intent for the next step of a fade. Only one step is pending at any time.
      *
-     * @see IntentService
+     * @param context The context
+     * @param fadeStart The start time of the fade
+     * @param fadeDuration The duration of the fade
+     * @param toNight If the fade goes to the night colors
+     * @return The pending intent for the next fade step
      */
-    public static PendingIntent getPendingNightIntent(Context context) {
+    static PendingIntent getPendingFadeStepIntent(Context context, long fadeStart,
+                                                  long fadeDuration, boolean toNight) {
         Intent intent = new Intent(context, NightColorsReceiver.class);
-        intent.setAction(ACTION_NIGHT);
-        return PendingIntent.getBroadcast(context, 0, intent, 0);
+        intent.setAction(ACTION_FADE_STEP);
+        intent.putExtra(EXTRA_FADE_START, fadeStart);
+        intent.putExtra(EXTRA_FADE_DURATION, fadeDuration);
+        intent.putExtra(EXTRA_FADE_TO_NIGHT, toNight);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
     }
 
     /**
-     * Starts this service to perform action Day with the given parameters. If
-     * the service is already performing a task this action will be queued.
+     * Get the configured fade duration
      *
-     * @see IntentService
+     * @param context The context
+     * @return The fade duration in milliseconds, 0 if the colors shall be switched directly
      */
-    public static PendingIntent getPendingDayIntent(Context context) {
-        Intent intent = new Intent(context, NightColorsReceiver.class);
-        intent.setAction(ACTION_DAY);
-        return PendingIntent.getBroadcast(context, 0, intent, 0);
+    static long getFadeDuration(Context context) {
+        SharedPreferences sharedPref = NightTimeHelper.getPreferences(context);
+        try {
+            return Long.parseLong(sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_FADE, "0")) * 60 * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the target colors with the configured night colors
+     *
+     * @param context The context
+     * @param toNight If the night colors shall be set
+     * @param fadeStart The start time of the fade in milliseconds since the epoch
+     * @param fadeDuration The duration of the fade in milliseconds, 0 for no fade
+     * @return The target
+     */
+    static PendingState getTarget(Context context, boolean toNight, long fadeStart, long fadeDuration) {
+        SharedPreferences sharedPref = NightTimeHelper.getPreferences(context);
+        int kelvin = ColorTemperature.CLASSIC;
+        int red = 100;
+        try {
+            kelvin = Integer.parseInt(sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_TEMPERATURE, "0"));
+            red = Integer.parseInt(sharedPref.getString(NightColorsSettingsFragment.KEY_PREF_RED, "100"));
+        } catch (NumberFormatException e) {
+            Log.e("NightColors", "Invalid night colors, using the defaults", e);
+        }
+
+        return PendingState.forTarget(toNight, fadeStart, fadeDuration, kelvin, red);
+    }
+
+    /**
+     * Ask the process of the service to reload the preferences and install the alarms. Used by
+     * the user interface, which runs in a different process.
+     *
+     * @param context The context
+     */
+    public static void requestInstallAlarms(Context context) {
+        Intent intent = new Intent(context, NightColorsCommandReceiver.class);
+        intent.setAction(NightColorsCommandReceiver.ACTION_INSTALL_ALARMS);
+        context.sendBroadcast(intent);
+    }
+
+    /**
+     * Request the alarms to be installed unless they are already armed for the current schedule.
+     * Reads preferences, do not call it on the UI thread.
+     *
+     * @param context The context
+     */
+    public static void installAlarmsIfChanged(Context context) {
+        if (TransitionScheduler.isArmed(context, NightTimeHelper.getFingerprint(context))) {
+            Log.i("NightColors", "Alarms are up to date");
+        } else {
+            requestInstallAlarms(context);
+        }
     }
 
+    /**
+     * Install the alarms and set the colors of the schedule. Only reads the stored device
+     * profile, the color interfaces are probed and written on the writer thread of the service.
+     *
+     * @param context The context
+     */
     public static void installAlarms(Context context) {
+        if (!mayHaveColorInterface(context)) {
+            Log.w("NightColors", "No writable color interface found, not installing any alarms");
+            return;
+        }
+
         AlarmManager alarmMgr = (AlarmManager)context.getSystemService(Context.ALARM_SERVICE);
 
-        NightTimeHelper helper = new NightTimeHelper(context);
+        long now = System.currentTimeMillis();
+        TimeZone tz = TimeZone.getDefault();
+        NightSchedule schedule = NightTimeHelper.getSchedule(context, NightSchedule.localDay(now, tz));
+
+        // a running fade would otherwise overwrite the colors set below
+        alarmMgr.cancel(getPendingFadeStepIntent(context, 0, 0, false));
 
         // if we are before the start of the day, set night colors
-        if (helper.isDay()) {
+        if (AmbientLightFilter.isDay(schedule, now, tz, AmbientLightService.getLightState())) {
+            journal(context, EventJournal.INSTALL_ALARMS, 0, 0);
             sendWakefulWork(context, ACTION_DAY);
         } else {
+            journal(context, EventJournal.INSTALL_ALARMS, 1, 0);
             sendWakefulWork(context, ACTION_NIGHT);
         }
 
-        DateFormat dateFormat = DateFormat.getDateTimeInstance();
+        cancelRepeatingAlarms(context, alarmMgr);
+        TransitionScheduler.scheduleNext(context, schedule, now, tz);
+        TransitionScheduler.setArmedFingerprint(context, NightTimeHelper.getFingerprint(context));
+        // the alarm that ends a snooze does not survive a reboot
+        long snoozeUntil = TransitionScheduler.getSnoozeUntil(context);
+        if (snoozeUntil > now) {
+            TransitionScheduler.setSnoozeUntil(context, snoozeUntil);
+        }
+        AmbientLightService.update(context);
+    }
+
+    /**
+     * Cancel the two repeating alarms that were used by previous versions.
+     */
+    private static void cancelRepeatingAlarms(Context context, AlarmManager alarmMgr) {
+        String[] actions = {ACTION_NIGHT, ACTION_DAY};
+        for (String action : actions) {
+            Intent intent = new Intent(context, NightColorsReceiver.class);
+            intent.setAction(action);
+            PendingIntent pending = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE);
+            if (pending != null) {
+                alarmMgr.cancel(pending);
+                pending.cancel();
+            }
+        }
+    }
+
+
+    /**
+     * A wake lock that keeps the device awake for a single command
+     */
+    private static final class HeldLock {
+        final PowerManager.WakeLock mLock;
+        final long mAcquired;
+
+        HeldLock(PowerManager.WakeLock lock, long acquired) {
+            mLock = lock;
+            mAcquired = acquired;
+        }
+    }
+
+    /**
+     * Get the color backend that is shared by all instances of the service in this process, so
+     * the last written values are remembered between transitions.
+     *
+     * The backend is created from the stored device profile, the color interfaces are only
+     * probed if no profile has been stored yet. If root is enabled in the settings, interfaces
+     * that only root can write are used through a shared root shell.
+     *
+     * @param context The context
+     * @return The color backend or null if the device has no usable color interface
+     */
+    synchronized static ColorBackend getColorBackend(Context context) {
+        boolean root = NightTimeHelper.getPreferences(context).getBoolean(NightColorsSettingsFragment.KEY_PREF_ROOT, false);
+        if (sProfileLoaded && root != (sRootShell != null)) {
+            // the backend has been created with the other setting
+            sColorBackend = null;
+            sProfileLoaded = false;
+        }
+        if (!root && sRootShell != null) {
+            sRootShell.close();
+            sRootShell = null;
+        } else if (root && sRootShell == null) {
+            sRootShell = new RootShell();
+        }
+
+        if (sColorBackend == null && !sProfileLoaded) {
+            DeviceProfile profile = null;
+            try {
+                profile = DeviceProfile.load(DeviceProfile.getFile(context.getFilesDir()));
+            } catch (IOException e) {
+                Log.e("NightColors", "Error reading the device profile", e);
+            }
+
+            if (profile == null) {
+                discoverColorInterface(context);
+            } else {
+                sColorBackend = profile.createBackend(sRootShell);
+                sProfileLoaded = true;
+            }
+        }
+
+        return sColorBackend;
+    }
+
+    /**
+     * Check if the device might have a usable color interface without touching sysfs or starting
+     * a root shell, so it can be called on the main thread. Only the stored device profile is
+     * read, if none is stored the interfaces are probed when the backend is first used.
+     *
+     * @param context The context
+     * @return False if the stored profile has no usable interface
+     */
+    static boolean mayHaveColorInterface(Context context) {
+        synchronized (SetScreenColorService.class) {
+            if (sColorBackend != null) {
+                return true;
+            }
+        }
+
+        boolean root = NightTimeHelper.getPreferences(context).getBoolean(NightColorsSettingsFragment.KEY_PREF_ROOT, false);
+        try {
+            DeviceProfile profile = DeviceProfile.load(DeviceProfile.getFile(context.getFilesDir()));
+            return profile == null || profile.getSelected(root) != null;
+        } catch (IOException e) {
+            Log.e("NightColors", "Error reading the device profile", e);
+            return true;
+        }
+    }
+
+    /**
+     * Forget the stored device profile, e.g. after a system update might have changed the kernel.
+     * The color interfaces are probed again on the writer thread when the backend is next used.
+     *
+     * @param context The context
+     */
+    synchronized static void requestDiscovery(Context context) {
+        File file = DeviceProfile.getFile(context.getFilesDir());
+        if (file.exists() && !file.delete()) {
+            Log.e("NightColors", "Error deleting the device profile");
+        }
+        sColorBackend = null;
+        sProfileLoaded = false;
+    }
+
+    /**
+     * Probe the color interfaces of the device, store the result and use it for all further
+     * transitions. Probing touches sysfs, it is only done on the writer thread.
+     *
+     * @param context The context
+     */
+    private synchronized static void discoverColorInterface(Context context) {
+        DeviceProfile profile = DeviceProfile.probe(sSysfsRoot);
+        Log.i("NightColors", "Color interfaces: " + profile);
+
+        try {
+            profile.save(DeviceProfile.getFile(context.getFilesDir()));
+        } catch (IOException e) {
+            Log.e("NightColors", "Error storing the device profile", e);
+        }
+
+        sColorBackend = profile.createBackend(sRootShell);
+        sProfileLoaded = true;
+    }
+
+    /**
+     * Replace the color backend, e.g. by a FakeColorBackend when running outside of a device.
+     *
+     * @param backend The new color backend
+     */
+    synchronized static void setColorBackend(ColorBackend backend) {
+        sColorBackend = backend;
+    }
+
+    /**
+     * Probe the color interfaces below a different directory, e.g. a fake sysfs tree when running
+     * outside of a device. The interfaces are probed again on the next use.
+     *
+     * @param root The directory that takes the place of the root of the file system
+     */
+    synchronized static void setSysfsRoot(File root) {
+        sSysfsRoot = root;
+        sColorBackend = null;
+        sProfileLoaded = false;
+    }
+
+    /**
+     * Forget everything this process has in memory, like after it has been killed: the color
+     * backend, the root shell, the wake locks, the journal and the order of the transitions.
+     * Used to replay the restart of the process and the redelivery of its commands.
+     */
+    synchronized static void resetProcess() {
+        sColorBackend = null;
+        sProfileLoaded = false;
+        if (sRootShell != null) {
+            sRootShell.close();
+            sRootShell = null;
+        }
+        for (HeldLock held : sLocks.values()) {
+            if (held.mLock.isHeld()) {
+                held.mLock.release();
+            }
+        }
+        sLocks.clear();
+        sJournal = null;
+        sJournalOpened = false;
+        sTransitionOrder = null;
+        NightTimeHelper.invalidate();
+    }
+
+    /**
+     * @return The number of commands whose wake lock is still held
+     */
+    synchronized static int getHeldLockCount() {
+        return sLocks.size();
+    }
+
+    /**
+     * @return The looper of the writer thread, to run the queued commands when the looper is
+     *         driven by a test
+     */
+    Looper getWriterLooper() {
+        return mWriterThread.getLooper();
+    }
+
+    /**
+     * Acquire a wake lock for a single command. The lock is released by releaseLock() or after
+     * WAKE_LOCK_TIMEOUT, whatever happens first.
+     *
+     * A command that has been redelivered after the process was killed carries the id of a lock
+     * that died with the old process, in this case a new lock is acquired under the same id.
+     *
+     * @param context The application context
+     * @param id The id of the lock or 0 to acquire a lock with a new id
+     * @return The id of the lock
+     */
+    synchronized private static long acquireLock(Context context, long id) {
+        if (id == 0) {
+            // the pid keeps the ids of a previous process apart if intents are redelivered
+            id = ((long) Process.myPid() << 32) | (++sNextLockId & 0xffffffffL);
+        }
 
-        Calendar beginNight = helper.getBeginOfNextNight();
-        // With setInexactRepeating(), you have to use one of the AlarmManager interval
-        // constants--in this case, AlarmManager.INTERVAL_DAY.
-        alarmMgr.setInexactRepeating(AlarmManager.RTC, beginNight.getTimeInMillis(),
-                AlarmManager.INTERVAL_DAY, getPendingNightIntent(context));
-        Log.i("NightColors", "Set night intent at " + dateFormat.format(beginNight.getTime()));
+        if (!sLocks.containsKey(id)) {
+            PowerManager mgr = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            PowerManager.WakeLock lock = mgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, NAME);
+            lock.setReferenceCounted(false);
+            lock.acquire(WAKE_LOCK_TIMEOUT);
+            sLocks.put(id, new HeldLock(lock, SystemClock.elapsedRealtime()));
+        }
 
-        Calendar beginDay = helper.getBeginOfNextDay();
-        alarmMgr.setInexactRepeating(AlarmManager.RTC, helper.getBeginOfNextDay().getTimeInMillis(),
-                AlarmManager.INTERVAL_DAY, getPendingDayIntent(context));
-        Log.i("NightColors", "Set day intent at " + dateFormat.format(beginDay.getTime()));
+        return id;
     }
 
+    /**
+     * Release the wake lock of a command. Further calls with the same id have no effect.
+     *
+     * @param id The id of the lock
+     */
+    synchronized private static void releaseLock(long id) {
+        HeldLock held = sLocks.remove(id);
+        if (held == null) {
+            return;
+        }
 
-    synchronized private static PowerManager.WakeLock getLock(Context context) {
-        if (lockStatic == null) {
-            PowerManager mgr=
-                    (PowerManager)context.getSystemService(Context.POWER_SERVICE);
+        long duration = SystemClock.elapsedRealtime() - held.mAcquired;
+        if (held.mLock.isHeld()) {
+            held.mLock.release();
+            NightColorsStats.WAKE_LOCK.record(duration);
+        } else {
+            // the timeout has released the lock, the command took too long
+            recordLeak(duration);
+        }
+    }
 
-            lockStatic=mgr.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, NAME);
-            lockStatic.setReferenceCounted(true);
+    /**
+     * Count the locks that their timeout has released although their command has not released
+     * them, e.g. because the command was lost. Such a lock would otherwise never be counted.
+     */
+    synchronized private static void collectExpiredLocks() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<HeldLock> locks = sLocks.values().iterator();
+        while (locks.hasNext()) {
+            HeldLock held = locks.next();
+            if (!held.mLock.isHeld()) {
+                locks.remove();
+                recordLeak(now - held.mAcquired);
+            }
         }
+    }
 
-        return(lockStatic);
+    private static void recordLeak(long duration) {
+        NightColorsStats.WAKE_LOCK_LEAKED.record(duration);
+        Log.w("NightColors", "Wake lock was released by its timeout after " + duration + "ms");
     }
 
     public static void sendWakefulWork(Context context, String action) {
@@ -109,8 +515,126 @@ public class SetScreenColorService extends Service {
     }
 
     public static void sendWakefulWork(Context context, Intent intent) {
-        getLock(context.getApplicationContext()).acquire();
-        context.startService(intent);
+        long id = acquireLock(context.getApplicationContext(), 0);
+        intent.putExtra(EXTRA_WAKE_LOCK, id);
+        if (context.startService(intent) == null) {
+            Log.e("NightColors", "Could not start the service for " + intent.getAction());
+            releaseLock(id);
+        }
+    }
+
+    /**
+     * Get the event journal of the app, opened on the first use in this process
+     *
+     * @param context The context
+     * @return The journal or null if it cannot be opened
+     */
+    synchronized static EventJournal getJournal(Context context) {
+        if (!sJournalOpened) {
+            sJournalOpened = true;
+            try {
+                sJournal = EventJournal.open(EventJournal.getFile(context.getFilesDir()), EventJournal.DEFAULT_CAPACITY);
+                sJournal.append(EventJournal.PROCESS_START, 0, Process.myPid());
+            } catch (IOException e) {
+                Log.e("NightColors", "Error opening the event journal", e);
+            }
+        }
+
+        return sJournal;
+    }
+
+    /**
+     * Append a record to the event journal of the app
+     *
+     * @param context The context
+     * @param type The type of the event
+     * @param arg The argument
+     * @param value The value
+     */
+    static void journal(Context context, int type, int arg, int value) {
+        EventJournal journal = getJournal(context);
+        if (journal != null) {
+            journal.append(type, arg, value);
+        }
+    }
+
+    /**
+     * The preferences, the schedule and the clock of the app as seen by the ColorDecider
+     */
+    private static final class DeciderEnvironment implements ColorDecider.Environment {
+        private final Context mContext;
+
+        DeciderEnvironment(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public TimeZone getTimeZone() {
+            return TimeZone.getDefault();
+        }
+
+        @Override
+        public NightSchedule getSchedule(long now) {
+            return NightTimeHelper.getSchedule(mContext, NightSchedule.localDay(now, TimeZone.getDefault()));
+        }
+
+        @Override
+        public int getLightState() {
+            return AmbientLightService.getLightState();
+        }
+
+        @Override
+        public long getFadeDuration() {
+            return SetScreenColorService.getFadeDuration(mContext);
+        }
+
+        @Override
+        public PendingState getTarget(boolean toNight, long fadeStart, long fadeDuration) {
+            return SetScreenColorService.getTarget(mContext, toNight, fadeStart, fadeDuration);
+        }
+
+        @Override
+        public long getSnoozeUntil() {
+            return TransitionScheduler.getSnoozeUntil(mContext);
+        }
+
+        @Override
+        public void setSnoozeUntil(long until) {
+            TransitionScheduler.setSnoozeUntil(mContext, until);
+        }
+    }
+
+    /**
+     * Get the decider that turns the commands into targets
+     *
+     * @param context The context
+     * @return The decider
+     */
+    static ColorDecider getDecider(Context context) {
+        return new ColorDecider(new DeciderEnvironment(context.getApplicationContext()), getTransitionOrder(context));
+    }
+
+    private static synchronized TransitionOrder getTransitionOrder(Context context) {
+        if (sTransitionOrder == null) {
+            sTransitionOrder = TransitionScheduler.loadTransitionOrder(context);
+        }
+        return sTransitionOrder;
+    }
+
+    /**
+     * Forget the order of the applied transitions, e.g. after the clock has been set back
+     *
+     * @param context The context
+     */
+    static void resetTransitionOrder(Context context) {
+        TransitionOrder order = getTransitionOrder(context);
+        order.reset();
+        TransitionScheduler.saveTransitionOrder(context, order);
     }
 
     @Override
@@ -119,130 +643,323 @@ public class SetScreenColorService extends Service {
         return null;
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        recordStartup();
+        journal(this, EventJournal.SERVICE_CREATE, 0, 0);
+        mWriterThread = new HandlerThread("NightColorsWriter", Process.THREAD_PRIORITY_BACKGROUND);
+        mWriterThread.start();
+        mWriter = new Handler(mWriterThread.getLooper());
+    }
+
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        PowerManager.WakeLock lock = getLock(this.getApplicationContext());
+        // the start flags have the same values as the journal flags
+        journal(this, EventJournal.SERVICE_START, flags, startId);
+
+        collectExpiredLocks();
+
+        // the lock of the intent, acquired again if the intent has been redelivered to a new process
+        long lockId = acquireLock(this.getApplicationContext(),
+                intent == null ? 0 : intent.getLongExtra(EXTRA_WAKE_LOCK, 0));
+
+        PendingState target = null;
+        boolean screenOn = false;
+        long manual = 0;
+
+        if (intent != null) {
+            String action = intent.getAction();
+
+            ColorDecider decider = getDecider(this);
+            TransitionOrder order = getTransitionOrder(this);
+            long lastSequence = order.getLastSequence();
+            long lastTime = order.getLastTime();
+
+            if (ACTION_MANUAL.equals(action)) {
+                // the widget has computed the target, a manual switch also ends a snooze
+                manual = intent.getLongExtra(EXTRA_TAPPED, SystemClock.elapsedRealtimeNanos());
+                boolean toNight = intent.getBooleanExtra(TransitionScheduler.EXTRA_TO_NIGHT, true);
+                journal(this, EventJournal.MANUAL, toNight ? 1 : 0, 0);
+                target = decider.onManual(toNight);
+            } else if (ACTION_SNOOZE.equals(action)) {
+                manual = intent.getLongExtra(EXTRA_TAPPED, SystemClock.elapsedRealtimeNanos());
+                int minutes = intent.getIntExtra(EXTRA_SNOOZE_MINUTES, NightColorsWidget.SNOOZE_MINUTES);
+                journal(this, EventJournal.MANUAL, EventJournal.MANUAL_SNOOZE, minutes);
+                target = decider.onSnooze(minutes);
+            } else if (TransitionScheduler.ACTION_RESUME.equals(action)) {
+                target = decider.onResume();
+            } else if (ACTION_FADE_STEP.equals(action)) {
+                target = decider.onFadeStep(intent.getLongExtra(EXTRA_FADE_START, 0),
+                        intent.getLongExtra(EXTRA_FADE_DURATION, 0), intent.getBooleanExtra(EXTRA_FADE_TO_NIGHT, true));
+                if (target == null) {
+                    Log.i("NightColors", "Dropped a step of an outdated fade");
+                }
+            } else if (TransitionScheduler.ACTION_TRANSITION.equals(action)) {
+                // the receiver has corrected the transition if the alarm was late
+                target = decider.onTransition(intent.getLongExtra(TransitionScheduler.EXTRA_SEQUENCE, 0),
+                        new Transition(intent.getLongExtra(TransitionScheduler.EXTRA_TIME, System.currentTimeMillis()),
+                                intent.getBooleanExtra(TransitionScheduler.EXTRA_TO_NIGHT, true)));
+                if (target == null) {
+                    Log.i("NightColors", "Dropped a duplicate or outdated transition");
+                }
+            } else if (ACTION_NIGHT.equals(action) || ACTION_DAY.equals(action)) {
+                target = decider.onSwitch(ACTION_NIGHT.equals(action));
+            } else if (Intent.ACTION_SCREEN_ON.equals(action)) {
+                screenOn = true;
+            } else {
+                Log.e("NightColors", "Error, unknown action " + action + " received");
+            }
 
-        // make sure that we hold the lock even if the service should have been restarted
-        if (!lock.isHeld()) {
-            lock.acquire();
+            // a redelivered alarm in a new process must not be applied again
+            if (order.getLastSequence() != lastSequence || order.getLastTime() != lastTime) {
+                TransitionScheduler.saveTransitionOrder(this, order);
+            }
         }
 
-        int result = START_REDELIVER_INTENT;
+        // Only the latest target is kept, commands that arrive while the writer is busy are
+        // handled together in a single pass.
+        synchronized (this) {
+            if (target != null) {
+                mQueuedTarget = target;
+                mQueuedManual = manual;
+            }
+            if (screenOn) {
+                mQueuedScreenOn = true;
+                mQueuedReceived = intent.getLongExtra(EXTRA_RECEIVED, 0);
+            }
+            if (mQueuedCount == mQueuedLocks.length) {
+                mQueuedLocks = Arrays.copyOf(mQueuedLocks, mQueuedCount * 2);
+            }
+            mQueuedLocks[mQueuedCount++] = lockId;
+            mQueuedStartId = startId;
+
+            if (!mApplyPosted) {
+                mApplyPosted = true;
+                mWriter.post(mApply);
+            }
+        }
+
+        // the intent is only completed when the writer stops the service
+        return START_REDELIVER_INTENT;
+    }
+
+    /**
+     * Handle the queued commands on the writer thread, the only thread that writes colors.
+     */
+    private void applyQueued() {
+        PendingState target;
+        boolean screenOn;
+        long received;
+        long manual;
+        long[] locks;
+        int count;
+        int startId;
+
+        synchronized (this) {
+            target = mQueuedTarget;
+            screenOn = mQueuedScreenOn;
+            received = mQueuedReceived;
+            manual = mQueuedManual;
+            locks = mQueuedLocks;
+            count = mQueuedCount;
+            startId = mQueuedStartId;
+            mQueuedTarget = null;
+            mQueuedScreenOn = false;
+            mQueuedReceived = 0;
+            mQueuedManual = 0;
+            mQueuedLocks = new long[4];
+            mQueuedCount = 0;
+            mApplyPosted = false;
+        }
 
         try {
-            if (intent != null) {
-                final String action = intent.getAction();
-                PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-
-                // handle the action directly if the screen is on
-                if (pm.isScreenOn()) {
-                    // The original action that should be executed with screen on
-                    String originalAction = action;
-
-                    // If this is the screen on intent, recover the original action which might be saved (or not)
-                    if (action.equals(Intent.ACTION_SCREEN_ON)) {
-                        if (mLastAction != null) {
-                            originalAction = mLastAction;
-                        } else { // recover action by comparing the current time to the configured times
-                            NightTimeHelper helper = new NightTimeHelper(getApplicationContext());
-                            if (helper.isDay()) {
-                                originalAction = ACTION_DAY;
-                            } else {
-                                originalAction = ACTION_NIGHT;
-                            }
-                        }
-                    }
+            // a dropped command does not need the backend, it must not cause any I/O
+            if (mController == null && (target != null || screenOn)) {
+                ColorBackend backend = getColorBackend(this);
+                if (backend == null) {
+                    Log.w("NightColors", "No writable color interface found, cancelling the alarms");
+                    TransitionScheduler.cancel(this);
+                } else {
+                    mController = new ColorController(this, backend, PendingState.getFile(getFilesDir()));
+                    mController.setAppliedFile(ColorController.getAppliedFile(getFilesDir()));
+                    mController.setJournal(getJournal(this));
+                }
+            }
 
-                    if (ACTION_NIGHT.equals(originalAction)) {
-                        handleActionNight();
-                    } else if (ACTION_DAY.equals(originalAction)) {
-                        handleActionDay();
-                    } else {
-                        Log.e("NightColors", "Error, unknown action " + originalAction + " received");
-                    }
+            boolean done;
 
-                    // Clean up: unregister receiver, stop service
-                    if (mReceiver != null) {
-                        unregisterReceiver(mReceiver);
-                        mReceiver = null;
+            if (mController == null) {
+                // the device has no color interface or there is nothing to do
+                done = true;
+            } else if (target != null) {
+                // a target is applied directly if the screen is on, this includes a screen on event
+                done = mController.onTarget(target);
+
+                if (done && manual != 0) {
+                    long latency = (SystemClock.elapsedRealtimeNanos() - manual) / 1000;
+                    NightColorsStats.MANUAL.record(latency);
+                    if (latency > FRAME_MICROS) {
+                        Log.w("NightColors", "Manual switch took " + latency + " us, longer than a frame");
                     }
+                }
 
-                    stopSelf(startId);
-                    result = START_NOT_STICKY;
+                // the widget shows the colors that are set, after the write it does not delay them
+                if (done) {
+                    NightColorsWidget.update(this, target.isToNight());
+                    mStagedTarget = null;
                 } else {
-                    // if the screen is off register a receiver, but only if it does not exist yet
-                    // this might be the case if the screen remained off between two alarms
-                    if (mReceiver == null) {
-                        mReceiver = new NightColorsReceiver();
-                        registerReceiver(mReceiver, new IntentFilter(Intent.ACTION_SCREEN_ON));
-                        Log.i("NightColors", "Cannot set colors while screen is off, scheduled receiver for screen on event");
-                    }
+                    mStagedTarget = target;
+                }
+            } else if (screenOn) {
+                done = mController.onScreenOn();
 
-                    // Store the action so we know what to do when the screen is turned on.
-                    // When the service is restarted we might receive again the ACTION_SCREEN_ON intent but the screen might still be off,
-                    // in this case do not store any action (will be recovered above instead).
-                    if (ACTION_DAY.equals(action) || ACTION_NIGHT.equals(action)) {
-                        mLastAction = action;
-                    }
+                if (done && mStagedTarget != null) {
+                    NightColorsWidget.update(this, mStagedTarget.isToNight());
+                    mStagedTarget = null;
                 }
+            } else {
+                done = !mController.isWaiting();
+            }
+
+            // a target that arrived together with the screen on event has been written as well
+            if (mController != null && done && screenOn && received != 0) {
+                NightColorsStats.SCREEN_ON.record((SystemClock.elapsedRealtimeNanos() - received) / 1000);
+            }
+
+            if (count > 1) {
+                Log.i("NightColors", "Coalesced " + count + " commands");
+            }
+
+            // does not stop the service if a newer command has been started in the meantime
+            if (done) {
+                stopSelf(startId);
             }
         } finally {
-            if (lock.isHeld()) {
-                lock.release();
+            for (int i = 0; i < count; ++i) {
+                releaseLock(locks[i]);
             }
         }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        dumpStats(this, writer);
+    }
 
-        return result;
+    /**
+     * Remember how much CPU time the process needed until the first component runs, called
+     * by the first component of the process.
+     */
+    synchronized static void recordStartup() {
+        if (sStartupCpuTime < 0) {
+            sStartupCpuTime = Process.getElapsedCpuTime();
+        }
     }
 
+    /**
+     * Dump the statistics, the footprint of this process and the alarms the schedule is expected
+     * to cause during the next day
+     *
+     * @param context The context
+     * @param writer The writer to dump to
+     */
+    static void dumpStats(Context context, PrintWriter writer) {
+        long now = System.currentTimeMillis();
+        TimeZone tz = TimeZone.getDefault();
+        NightSchedule schedule = NightTimeHelper.getSchedule(context, NightSchedule.localDay(now, tz));
+        int transitions = schedule.countTransitions(now, now + NightSchedule.DAY_MILLIS, tz);
+        long fadeDuration = getFadeDuration(context);
+        int steps = 0;
+        if (fadeDuration > 0) {
+            PendingState night = getTarget(context, true, 0, 0);
+            steps = ColorTransition.get(night.getNightRed(), night.getNightGreen(), night.getNightBlue(),
+                    fadeDuration).getStepCount();
+        }
+        writer.println("Expected alarms in the next 24h: " + transitions + " transitions, "
+                + transitions * steps + " fade steps");
+
+        dumpProcessStats(writer);
+    }
+
+    private synchronized static void dumpProcessStats(PrintWriter writer) {
+        collectExpiredLocks();
+        writer.println("Process " + Process.myPid() + ": startup cpu=" + sStartupCpuTime + "ms pss="
+                + Debug.getPss() + "kB classes=" + Debug.getLoadedClassCount()
+                + " wake locks held=" + sLocks.size());
+        NightColorsStats.dump(writer);
+        if (sJournal != null) {
+            writer.println("Latest events:");
+            sJournal.decode(writer, 100);
+        }
+    }
 
     @Override
     public void onDestroy() {
-        if (mReceiver != null) {
-            unregisterReceiver(mReceiver);
-            mReceiver = null;
+        journal(this, EventJournal.SERVICE_DESTROY, 0, 0);
+        synchronized (this) {
+            mDestroyed = true;
         }
+        // the queued commands are still applied and release their wake locks
+        mWriterThread.quitSafely();
+        setWaitingForScreenOn(false);
+        collectExpiredLocks();
+        super.onDestroy();
     }
 
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
 
-    /**
-     * Handle action Day in the provided background thread with the provided
-     * parameters.
-     */
-    private void handleActionNight() {
-        try {
-            PrintWriter greenWriter = new PrintWriter(GREEN_PATH);
-            greenWriter.print(200000000);
-            greenWriter.close();
+    @Override
+    public long elapsedRealtime() {
+        return SystemClock.elapsedRealtime();
+    }
 
-            PrintWriter blueWriter = new PrintWriter(BLUE_PATH);
-            blueWriter.print(200000000);
-            blueWriter.close();
+    @Override
+    public boolean isScreenOn() {
+        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        return pm.isScreenOn();
+    }
 
-            Log.i("NightColors", "Set night colors");
-        } catch (FileNotFoundException e) {
-            Log.e("NightColors", "Error setting night colors", e);
+    @Override
+    public synchronized void setWaitingForScreenOn(boolean waiting) {
+        // a command that is applied after onDestroy() must not register a receiver that is never removed
+        if (waiting && mReceiver == null && !mDestroyed) {
+            mReceiver = new NightColorsReceiver();
+            registerReceiver(mReceiver, new IntentFilter(Intent.ACTION_SCREEN_ON));
+            Log.i("NightColors", "Cannot set colors while screen is off, scheduled receiver for screen on event");
+        } else if (!waiting && mReceiver != null) {
+            unregisterReceiver(mReceiver);
+            mReceiver = null;
         }
     }
 
-    /**
-     * Handle action Night in the provided background thread with the provided
-     * parameters.
-     */
-    private void handleActionDay() {
-        try {
-            PrintWriter greenWriter = new PrintWriter(GREEN_PATH);
-            greenWriter.print(2000000000);
-            greenWriter.close();
+    @Override
+    public void scheduleFadeStep(long time, long window, PendingState state) {
+        AlarmManager alarmMgr = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
+        // RTC does not wake up the device so no steps are processed while it sleeps.
+        alarmMgr.setWindow(AlarmManager.RTC, time, window, getPendingFadeStepIntent(this,
+                state.getFadeStart(), state.getFadeDuration(), state.isToNight()));
+    }
 
-            PrintWriter blueWriter = new PrintWriter(BLUE_PATH);
-            blueWriter.print(2000000000);
-            blueWriter.close();
+    @Override
+    public PendingState getCurrentTarget(long now) {
+        return getDecider(this).getCurrentTarget(now);
+    }
 
-            Log.i("NightColors", "Set day colors");
-        } catch (FileNotFoundException e) {
-            Log.e("NightColors", "Error setting day colors", e);
+    @Override
+    public void onColorsSet(String name, boolean written) {
+        if (written) {
+            Log.i("NightColors", "Set " + name + " colors");
+        } else {
+            Log.i("NightColors", "The " + name + " colors are already set");
         }
     }
+
+    @Override
+    public void onError(String message, IOException e) {
+        Log.e("NightColors", message, e);
+    }
 }
@@ -112,7 +112,13 @@ public class TimePickerPreference extends DialogPreference {
 
     @Override
     protected Object onGetDefaultValue(TypedArray a, int index) {
-        return a.getInteger(index, DEFAULT_VALUE);
+        // aapt compiles the value to an integer, Robolectric keeps it as a string, both can be
+        // read as a string
+        try {
+            return Integer.parseInt(a.getString(index));
+        } catch (NumberFormatException e) {
+            return DEFAULT_VALUE;
+        }
     }
 
     @Override
@@ -0,0 +1,322 @@
+package de.content_space.nightcolors;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import de.content_space.nightcolors.core.ClockChange;
+import de.content_space.nightcolors.core.EventJournal;
+import de.content_space.nightcolors.core.NightColorsStats;
+import de.content_space.nightcolors.core.NightSchedule;
+import de.content_space.nightcolors.core.Transition;
+import de.content_space.nightcolors.core.TransitionOrder;
+
+/**
+ * Keeps exactly one alarm pending for the next transition between day and night.
+ *
+ * When the alarm fires, the following transition is computed and armed, so there are no
+ * repeating alarms that could drift or be delivered far from the configured time. The alarms are
+ * of type RTC, they do not wake up the device but are delivered as soon as it is awake.
+ */
+public class TransitionScheduler {
+    public static final String ACTION_TRANSITION = "de.content_space.nightcolors.action.TRANSITION";
+    /** The end of a snooze, the colors of the schedule are set again */
+    public static final String ACTION_RESUME = "de.content_space.nightcolors.action.RESUME";
+    /** If the transition goes to the night colors */
+    static final String EXTRA_TO_NIGHT = "de.content_space.nightcolors.extra.TO_NIGHT";
+    /** The scheduled time of the transition in milliseconds since the epoch */
+    static final String EXTRA_TIME = "de.content_space.nightcolors.extra.TIME";
+    /** The sequence number of the armed alarm, it grows with every armed alarm */
+    static final String EXTRA_SEQUENCE = "de.content_space.nightcolors.extra.SEQUENCE";
+    private static final String STATE_PREFS = "transition_state";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_SNOOZE_UNTIL = "snooze_until";
+    private static final String KEY_ARMED_TIME = "armed_time";
+    private static final String KEY_ARMED_TO_NIGHT = "armed_to_night";
+    private static final String KEY_SEQUENCE = "sequence";
+    private static final String KEY_ARMED_OFFSET = "armed_offset";
+    private static final String KEY_LAST_SEQUENCE = "last_sequence";
+    private static final String KEY_LAST_TIME = "last_time";
+
+    /**
+     * Get the pending intent of the transition alarm. There is only one, arming another
+     * transition replaces the pending one.
+     *
+     * @param context The context
+     * @param toNight If the transition goes to the night colors
+     * @param time The scheduled time of the transition
+     * @param sequence The sequence number of the alarm
+     * @return The pending intent
+     */
+    static PendingIntent getPendingTransitionIntent(Context context, boolean toNight, long time, long sequence) {
+        Intent intent = new Intent(context, NightColorsReceiver.class);
+        intent.setAction(ACTION_TRANSITION);
+        intent.putExtra(EXTRA_TO_NIGHT, toNight);
+        intent.putExtra(EXTRA_TIME, time);
+        intent.putExtra(EXTRA_SEQUENCE, sequence);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Remember for which schedule the transition alarm has been armed
+     *
+     * @param context The context
+     * @param fingerprint The fingerprint of the schedule
+     */
+    @SuppressWarnings("deprecation")
+    static void setArmedFingerprint(Context context, String fingerprint) {
+        context.getSharedPreferences(STATE_PREFS, Context.MODE_MULTI_PROCESS).edit()
+                .putString(KEY_FINGERPRINT, fingerprint).apply();
+    }
+
+    /**
+     * Check if the transition alarm is pending and has been armed for the given schedule. Reads
+     * a preferences file, do not call it on the UI thread.
+     *
+     * @param context The context
+     * @param fingerprint The fingerprint of the current schedule
+     * @return If the alarm does not need to be armed again
+     */
+    @SuppressWarnings("deprecation")
+    static boolean isArmed(Context context, String fingerprint) {
+        String armed = context.getSharedPreferences(STATE_PREFS, Context.MODE_MULTI_PROCESS)
+                .getString(KEY_FINGERPRINT, null);
+        if (!fingerprint.equals(armed)) {
+            return false;
+        }
+
+        // the alarm is gone e.g. after the app has been force stopped
+        Intent intent = new Intent(context, NightColorsReceiver.class);
+        intent.setAction(ACTION_TRANSITION);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null;
+    }
+
+    private static PendingIntent getPendingResumeIntent(Context context) {
+        Intent intent = new Intent(context, NightColorsReceiver.class);
+        intent.setAction(ACTION_RESUME);
+        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Suppress the night colors until the given time and arm the alarm that resumes the schedule.
+     * The transition alarm is not changed, transitions to the night during the snooze are ignored.
+     *
+     * @param context The context
+     * @param until The end of the snooze in milliseconds since the epoch, 0 to end the snooze now
+     */
+    @SuppressWarnings("deprecation")
+    static void setSnoozeUntil(Context context, long until) {
+        context.getSharedPreferences(STATE_PREFS, Context.MODE_MULTI_PROCESS).edit()
+                .putLong(KEY_SNOOZE_UNTIL, until).apply();
+
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        if (until == 0) {
+            alarmMgr.cancel(getPendingResumeIntent(context));
+        } else {
+            // like the transitions, the end of a snooze does not need to wake up the device
+            setExactAlarm(alarmMgr, until, getPendingResumeIntent(context));
+        }
+    }
+
+    /**
+     * Get the end of the snooze
+     *
+     * @param context The context
+     * @return The end of the snooze in milliseconds since the epoch, 0 if there is none
+     */
+    static long getSnoozeUntil(Context context) {
+        return getState(context).getLong(KEY_SNOOZE_UNTIL, 0);
+    }
+
+    /**
+     * Arm the alarm for the first transition after the given time.
+     *
+     * @param context The context
+     * @param schedule The schedule
+     * @param after The time after which the transition shall happen
+     * @param tz The time zone
+     * @return The time of the armed transition, Long.MAX_VALUE if there is none
+     */
+    public static long scheduleNext(Context context, NightSchedule schedule, long after, TimeZone tz) {
+        Transition next = Transition.next(schedule, after, tz);
+        if (next == null) {
+            // e.g. a polar night that lasts beyond the computed sun schedule
+            Log.w("NightColors", "No transition found, no alarm is armed");
+            return Long.MAX_VALUE;
+        }
+        boolean toNight = next.isToNight();
+        long time = next.getTime();
+
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        SharedPreferences state = getState(context);
+        long sequence = state.getLong(KEY_SEQUENCE, 0) + 1;
+        PendingIntent intent = getPendingTransitionIntent(context, toNight, time, sequence);
+
+        setExactAlarm(alarmMgr, time, intent);
+
+        Log.i("NightColors", "Set " + (toNight ? "night" : "day") + " intent at "
+                + DateFormat.getDateTimeInstance().format(new Date(time)));
+        state.edit().putLong(KEY_ARMED_TIME, time).putBoolean(KEY_ARMED_TO_NIGHT, toNight)
+                .putLong(KEY_SEQUENCE, sequence).putInt(KEY_ARMED_OFFSET, tz.getOffset(after)).apply();
+
+        return time;
+    }
+
+    /**
+     * Arm an alarm that is delivered at the given time once the device is awake, also in doze
+     *
+     * @param alarmMgr The alarm manager
+     * @param time The time in milliseconds since the epoch
+     * @param intent The intent to deliver
+     */
+    private static void setExactAlarm(AlarmManager alarmMgr, long time, PendingIntent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            alarmMgr.setExactAndAllowWhileIdle(AlarmManager.RTC, time, intent);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            alarmMgr.setExact(AlarmManager.RTC, time, intent);
+        } else {
+            alarmMgr.set(AlarmManager.RTC, time, intent);
+        }
+    }
+
+    /**
+     * Cancel the transition alarm, e.g. if the device has no usable color interface. The alarms
+     * are installed again by the next boot or change of the settings.
+     *
+     * @param context The context
+     */
+    static void cancel(Context context) {
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmMgr.cancel(getPendingTransitionIntent(context, false, 0, 0));
+        getState(context).edit().remove(KEY_FINGERPRINT).apply();
+    }
+
+    /**
+     * Load the last accepted transition, it outlives the process that applied it
+     *
+     * @param context The context
+     * @return The order of the applied transitions
+     */
+    static TransitionOrder loadTransitionOrder(Context context) {
+        SharedPreferences state = getState(context);
+        return new TransitionOrder(state.getLong(KEY_LAST_SEQUENCE, 0), state.getLong(KEY_LAST_TIME, Long.MIN_VALUE));
+    }
+
+    /**
+     * Store the last accepted transition
+     *
+     * @param context The context
+     * @param order The order of the applied transitions
+     */
+    static void saveTransitionOrder(Context context, TransitionOrder order) {
+        getState(context).edit().putLong(KEY_LAST_SEQUENCE, order.getLastSequence())
+                .putLong(KEY_LAST_TIME, order.getLastTime()).apply();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static SharedPreferences getState(Context context) {
+        return context.getSharedPreferences(STATE_PREFS, Context.MODE_MULTI_PROCESS);
+    }
+
+    /**
+     * The wall clock or the time zone has changed: arm the next transition again if it is now a
+     * different one and correct the colors to the new local time. The colors are written at most
+     * once, a fade that is still running at the new time continues from its current step.
+     *
+     * A change of the date alone happens every midnight, then the alarm is only armed again if
+     * the armed time moved and the colors are only corrected if the offset of the time zone
+     * changed since the alarm was armed, e.g. at a change of the daylight saving time.
+     *
+     * @param context The context
+     * @param dateOnly If only the date changed and not the wall clock or the time zone
+     */
+    @SuppressWarnings("deprecation")
+    static void onClockChanged(Context context, boolean dateOnly) {
+        if (!SetScreenColorService.mayHaveColorInterface(context)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        TimeZone tz = TimeZone.getDefault();
+        SharedPreferences state = getState(context);
+        int offset = tz.getOffset(now);
+        boolean offsetChanged = offset != state.getInt(KEY_ARMED_OFFSET, offset);
+        if (!dateOnly || offsetChanged) {
+            NightTimeHelper.invalidate();
+        }
+        NightSchedule schedule = NightTimeHelper.getSchedule(context, NightSchedule.localDay(now, tz));
+
+        ClockChange change = ClockChange.compute(schedule, now, tz, state.getLong(KEY_ARMED_TIME, 0),
+                state.getBoolean(KEY_ARMED_TO_NIGHT, false), SetScreenColorService.getFadeDuration(context),
+                AmbientLightService.getLightState());
+
+        if (dateOnly && !offsetChanged) {
+            // the colors and the order of the transitions are still valid
+            if (change.isRearmNeeded()) {
+                SetScreenColorService.journal(context, EventJournal.CLOCK_CHANGE, 1, offset / 60000);
+                scheduleNext(context, schedule, now + 1, tz);
+            }
+            return;
+        }
+
+        SetScreenColorService.journal(context, EventJournal.CLOCK_CHANGE, change.isRearmNeeded() ? 1 : 0,
+                offset / 60000);
+
+        if (change.isRearmNeeded()) {
+            scheduleNext(context, schedule, now + 1, tz);
+            // the time zone is part of the fingerprint
+            setArmedFingerprint(context, NightTimeHelper.getFingerprint(context));
+        } else {
+            Log.i("NightColors", "The next transition has not changed");
+        }
+
+        // transitions before the last applied one are valid again if the clock was set back
+        SetScreenColorService.resetTransitionOrder(context);
+
+        // the pending fade step belongs to the old time
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmMgr.cancel(SetScreenColorService.getPendingFadeStepIntent(context, 0, 0, false));
+
+        Intent intent = new Intent(context, SetScreenColorService.class);
+        intent.setAction(SetScreenColorService.ACTION_FADE_STEP);
+        intent.putExtra(SetScreenColorService.EXTRA_FADE_START, change.getFadeStart());
+        intent.putExtra(SetScreenColorService.EXTRA_FADE_DURATION, change.getFadeDuration());
+        intent.putExtra(SetScreenColorService.EXTRA_FADE_TO_NIGHT, change.isToNight());
+        SetScreenColorService.sendWakefulWork(context, intent);
+    }
+
+    /**
+     * Arm the transition that follows the one of the given alarm intent.
+     *
+     * If the alarm was delivered so late that further transitions have passed in the meantime,
+     * e.g. because the device was asleep, the intent is updated to the latest passed transition.
+     *
+     * @param context The context
+     * @param intent The intent of the alarm that fired, updated if it is outdated
+     * @return The time of the armed transition
+     */
+    public static long onAlarm(Context context, Intent intent) {
+        long now = System.currentTimeMillis();
+        TimeZone tz = TimeZone.getDefault();
+        long time = intent.getLongExtra(EXTRA_TIME, now);
+        NightColorsStats.ALARM_DRIFT.record(now - time);
+        SetScreenColorService.journal(context, EventJournal.ALARM,
+                intent.getBooleanExtra(EXTRA_TO_NIGHT, true) ? 1 : 0, (int) Math.min(Integer.MAX_VALUE, now - time));
+
+        NightSchedule schedule = NightTimeHelper.getSchedule(context, NightSchedule.localDay(now, tz));
+        Transition transition = new Transition(time, intent.getBooleanExtra(EXTRA_TO_NIGHT, true))
+                .latest(schedule, now, tz);
+        intent.putExtra(EXTRA_TIME, transition.getTime());
+        intent.putExtra(EXTRA_TO_NIGHT, transition.isToNight());
+
+        return scheduleNext(context, schedule, transition.getFollowingAfter(now), tz);
+    }
+}
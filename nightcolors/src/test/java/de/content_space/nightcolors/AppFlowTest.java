@@ -0,0 +1,413 @@
+package de.content_space.nightcolors;
+
+import android.app.AlarmManager;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Looper;
+import android.os.PowerManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowAlarmManager;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowPowerManager;
+import org.robolectric.util.FragmentTestUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import de.content_space.nightcolors.core.ColorController;
+import de.content_space.nightcolors.core.ColorTemperature;
+import de.content_space.nightcolors.core.NightColorsStats;
+import de.content_space.nightcolors.core.SysfsColorBackend;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the receiver, the service and the schedule through the flows of a device: boot, alarms,
+ * screen off and on, settings edits and redelivered commands.
+ *
+ * The alarm and power managers are the shadows of Robolectric and the colors are written to a
+ * samoled_color tree in a temporary directory. Every scenario checks the values the panel ends up
+ * with and the writes, wake locks, dropped alarms and alarms it cost, so a regression fails the
+ * build.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21, shadows = AppFlowTest.ShadowWriterLooper.class)
+public class AppFlowTest {
+    private static final int DAY = ColorController.DAY_MULTIPLIER;
+    private static final int NIGHT = ColorController.NIGHT_MULTIPLIER;
+    /** The longest time a command may hold its wake lock, the clock only moves when a test moves it */
+    private static final long MAX_WAKE_LOCK_MILLIS = 100;
+
+    @Rule
+    public TemporaryFolder mSysfs = new TemporaryFolder();
+
+    private Context mContext;
+    private File mPanel;
+    private ShadowAlarmManager mAlarms;
+    private ShadowPowerManager mPower;
+    private SetScreenColorService mService = null;
+    private Intent mLastCommand = null;
+    private int mStartId = 0;
+    private int mBroadcasts = 0;
+
+    /**
+     * Robolectric 3.0 does not shadow quitSafely(), the commands that are still queued on the
+     * looper are run before it quits
+     */
+    @Implements(Looper.class)
+    public static class ShadowWriterLooper extends ShadowLooper {
+        @Implementation
+        public void quitSafely() {
+            runToEndOfTasks();
+            quit();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mContext = RuntimeEnvironment.application;
+        mPanel = new File(mSysfs.getRoot(), SysfsColorBackend.SAMOLED_PATH.substring(1));
+        assertTrue(mPanel.mkdirs());
+        setPanel(DAY, DAY, DAY);
+
+        SetScreenColorService.resetProcess();
+        SetScreenColorService.setSysfsRoot(mSysfs.getRoot());
+        NightColorsStats.reset();
+
+        mAlarms = Shadows.shadowOf((AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE));
+        mPower = Shadows.shadowOf((PowerManager) mContext.getSystemService(Context.POWER_SERVICE));
+        mPower.setIsScreenOn(true);
+    }
+
+    @After
+    public void tearDown() {
+        killService();
+        SetScreenColorService.resetProcess();
+        SetScreenColorService.setSysfsRoot(new File("/"));
+    }
+
+    private void setPanel(int red, int green, int blue) throws IOException {
+        writeValue("red_multiplier", red);
+        writeValue("green_multiplier", green);
+        writeValue("blue_multiplier", blue);
+    }
+
+    private void writeValue(String name, int value) throws IOException {
+        FileWriter writer = new FileWriter(new File(mPanel, name));
+        try {
+            writer.write(Integer.toString(value));
+        } finally {
+            writer.close();
+        }
+    }
+
+    private int readValue(String name) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(new File(mPanel, name)));
+        try {
+            return Integer.parseInt(reader.readLine().trim());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertPanel(int red, int green, int blue) throws IOException {
+        assertEquals(red, readValue("red_multiplier"));
+        assertEquals(green, readValue("green_multiplier"));
+        assertEquals(blue, readValue("blue_multiplier"));
+    }
+
+    /**
+     * Configure a fixed schedule in which the current time is an hour after the start of the day
+     * or of the night
+     */
+    private void setSchedule(boolean day) {
+        Calendar now = Calendar.getInstance();
+        int minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        int before = (minute + 23 * 60) % (24 * 60);
+        int after = (minute + 60) % (24 * 60);
+        NightTimeHelper.getPreferences(mContext).edit()
+                .putInt(NightColorsSettingsFragment.KEY_PREF_START, day ? before : after)
+                .putInt(NightColorsSettingsFragment.KEY_PREF_END, day ? after : before)
+                .commit();
+        NightTimeHelper.invalidate();
+    }
+
+    private void receive(String action) {
+        new NightColorsReceiver().onReceive(mContext, new Intent(action));
+        runService();
+    }
+
+    private void receiveCommand(String action) {
+        new NightColorsCommandReceiver().onReceive(mContext, new Intent(action));
+        runService();
+    }
+
+    /**
+     * Deliver the commands that have been sent to the service, like the system would
+     */
+    private void runService() {
+        ShadowApplication application = ShadowApplication.getInstance();
+        Intent intent;
+        while ((intent = application.getNextStartedService()) != null) {
+            if (SetScreenColorService.class.getName().equals(intent.getComponent().getClassName())) {
+                deliver(intent, 0);
+            }
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    private void deliver(Intent intent, int flags) {
+        if (mService == null) {
+            mService = Robolectric.buildService(SetScreenColorService.class).attach().create().get();
+        }
+        mLastCommand = intent;
+        mService.onStartCommand(intent, flags, ++mStartId);
+        // the writer thread handles the command, its looper only runs when the test runs it
+        Shadows.shadowOf(mService.getWriterLooper()).runToEndOfTasks();
+    }
+
+    /**
+     * Destroy the service like the system does after it stopped itself or the process died
+     */
+    private void killService() {
+        if (mService != null) {
+            mService.onDestroy();
+            mService = null;
+        }
+    }
+
+    private List<ShadowAlarmManager.ScheduledAlarm> getAlarms(String action) {
+        List<ShadowAlarmManager.ScheduledAlarm> result = new ArrayList<ShadowAlarmManager.ScheduledAlarm>();
+        for (ShadowAlarmManager.ScheduledAlarm alarm : mAlarms.getScheduledAlarms()) {
+            if (action.equals(Shadows.shadowOf(alarm.operation).getSavedIntent().getAction())) {
+                result.add(alarm);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fire the pending transition alarm, the receiver arms the next one with the same intent
+     */
+    private void fireTransition() {
+        List<ShadowAlarmManager.ScheduledAlarm> alarms = getAlarms(TransitionScheduler.ACTION_TRANSITION);
+        assertEquals(1, alarms.size());
+        Intent intent = Shadows.shadowOf(alarms.get(0).operation).getSavedIntent();
+        new NightColorsReceiver().onReceive(mContext, new Intent(intent));
+        runService();
+    }
+
+    /**
+     * Wait for the work that has been handed to AsyncTask.execute(), Robolectric 3.0 does not
+     * shadow it and runs it on a real thread. The executor is serial, so the work has completed
+     * when a task that is queued after it has.
+     */
+    private void flushAsyncTasks() throws Exception {
+        FutureTask<Void> marker = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+        AsyncTask.execute(marker);
+        marker.get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Deliver the requests to install the alarms that the user interface has sent since the last
+     * call, the command receiver has no intent filter so Robolectric does not deliver them
+     *
+     * @return The number of requests
+     */
+    private int deliverInstallRequests() {
+        List<Intent> broadcasts = ShadowApplication.getInstance().getBroadcastIntents();
+        int count = 0;
+        for (; mBroadcasts < broadcasts.size(); ++mBroadcasts) {
+            Intent intent = broadcasts.get(mBroadcasts);
+            if (NightColorsCommandReceiver.ACTION_INSTALL_ALARMS.equals(intent.getAction())) {
+                receiveCommand(intent.getAction());
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Check the costs of the scenario
+     *
+     * @param writes The expected number of written multipliers
+     * @param dropped The expected number of dropped alarms
+     */
+    private void assertCosts(int writes, int dropped) {
+        assertEquals(writes, NightColorsStats.WRITE.getCount());
+        assertEquals(dropped, NightColorsStats.DROPPED.getCount());
+        // every command has released its lock right after it was handled
+        assertEquals(0, SetScreenColorService.getHeldLockCount());
+        assertEquals(0, NightColorsStats.WAKE_LOCK_LEAKED.getCount());
+        assertTrue(NightColorsStats.WAKE_LOCK.getCount() > 0);
+        assertTrue(NightColorsStats.WAKE_LOCK.getMax() <= MAX_WAKE_LOCK_MILLIS);
+        assertEquals(1, getAlarms(TransitionScheduler.ACTION_TRANSITION).size());
+    }
+
+    @Test
+    public void testBootAtDay() throws IOException {
+        setSchedule(true);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+
+        assertTrue(new NightTimeHelper(mContext).isDay());
+        assertPanel(DAY, DAY, DAY);
+        // the panel already has the day colors
+        assertCosts(0, 0);
+    }
+
+    @Test
+    public void testBootAtNight() throws IOException {
+        setSchedule(false);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+
+        assertFalse(new NightTimeHelper(mContext).isDay());
+        assertPanel(DAY, NIGHT, NIGHT);
+        assertCosts(2, 0);
+    }
+
+    @Test
+    public void testAlarm() throws IOException {
+        setSchedule(true);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+        fireTransition();
+
+        assertPanel(DAY, NIGHT, NIGHT);
+        // the next alarm goes back to the day
+        assertFalse(Shadows.shadowOf(getAlarms(TransitionScheduler.ACTION_TRANSITION).get(0).operation)
+                .getSavedIntent().getBooleanExtra(TransitionScheduler.EXTRA_TO_NIGHT, true));
+        assertCosts(2, 0);
+    }
+
+    @Test
+    public void testScreenOffAndOn() throws IOException {
+        setSchedule(true);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+
+        mPower.setIsScreenOn(false);
+        fireTransition();
+        assertPanel(DAY, DAY, DAY);
+        List<BroadcastReceiver> receivers = ShadowApplication.getInstance()
+                .getReceiversForIntent(new Intent(Intent.ACTION_SCREEN_ON));
+        assertEquals(1, receivers.size());
+
+        mPower.setIsScreenOn(true);
+        receivers.get(0).onReceive(mContext, new Intent(Intent.ACTION_SCREEN_ON));
+        runService();
+
+        assertPanel(DAY, NIGHT, NIGHT);
+        assertEquals(1, NightColorsStats.SCREEN_WAIT.getCount());
+        assertFalse(ShadowApplication.getInstance().hasReceiverForIntent(new Intent(Intent.ACTION_SCREEN_ON)));
+        assertCosts(2, 0);
+    }
+
+    @Test
+    public void testSettingsEdit() throws Exception {
+        setSchedule(false);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+        NightColorsStats.reset();
+
+        NightColorsSettingsFragment fragment = new NightColorsSettingsFragment();
+        FragmentTestUtil.startFragment(fragment);
+        SharedPreferences preferences = fragment.getPreferenceScreen().getSharedPreferences();
+
+        // two edits within the delay install the alarms once
+        preferences.edit().putString(NightColorsSettingsFragment.KEY_PREF_TEMPERATURE, "3400").commit();
+        ShadowLooper.idleMainLooper(NightColorsSettingsFragment.RESCHEDULE_DELAY / 2);
+        preferences.edit().putString(NightColorsSettingsFragment.KEY_PREF_TEMPERATURE, "2700").commit();
+        ShadowLooper.idleMainLooper(NightColorsSettingsFragment.RESCHEDULE_DELAY / 2);
+        flushAsyncTasks();
+        assertEquals(0, deliverInstallRequests());
+
+        ShadowLooper.idleMainLooper(NightColorsSettingsFragment.RESCHEDULE_DELAY);
+        flushAsyncTasks();
+        assertEquals(1, deliverInstallRequests());
+        assertPanel(DAY, ColorTemperature.getGreen(2700), ColorTemperature.getBlue(2700));
+
+        // an edit that is reverted keeps the fingerprint, nothing is installed or written
+        preferences.edit().putString(NightColorsSettingsFragment.KEY_PREF_TEMPERATURE, "3400").commit();
+        preferences.edit().putString(NightColorsSettingsFragment.KEY_PREF_TEMPERATURE, "2700").commit();
+        ShadowLooper.idleMainLooper(NightColorsSettingsFragment.RESCHEDULE_DELAY);
+        flushAsyncTasks();
+        assertEquals(0, deliverInstallRequests());
+        assertCosts(2, 0);
+    }
+
+    @Test
+    public void testRedelivery() throws IOException {
+        setSchedule(true);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+        fireTransition();
+
+        // the same transition is delivered again while the process is alive, it is dropped
+        deliver(mLastCommand, Service.START_FLAG_REDELIVERY);
+        assertPanel(DAY, NIGHT, NIGHT);
+        assertCosts(2, 1);
+    }
+
+    @Test
+    public void testProcessRestart() throws IOException {
+        setSchedule(true);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+        fireTransition();
+        assertNotNull(mLastCommand);
+
+        // the process dies before the command is completed, the new process gets it again and
+        // drops it, the applied transition has been stored
+        killService();
+        SetScreenColorService.resetProcess();
+        deliver(mLastCommand, Service.START_FLAG_REDELIVERY);
+        assertPanel(DAY, NIGHT, NIGHT);
+        assertCosts(2, 1);
+    }
+
+    @Test
+    public void testLostCommand() throws IOException {
+        setSchedule(true);
+        receive(Intent.ACTION_BOOT_COMPLETED);
+
+        // a command never reaches the service and its lock is released by the timeout
+        SetScreenColorService.sendWakefulWork(mContext, SetScreenColorService.ACTION_DAY);
+        assertNotNull(ShadowApplication.getInstance().getNextStartedService());
+        ShadowPowerManager.getLatestWakeLock().release();
+        assertEquals(1, SetScreenColorService.getHeldLockCount());
+
+        // the next command counts the lock as leaked
+        fireTransition();
+        assertEquals(1, NightColorsStats.WAKE_LOCK_LEAKED.getCount());
+        assertEquals(0, SetScreenColorService.getHeldLockCount());
+        assertPanel(DAY, NIGHT, NIGHT);
+    }
+}